@@ -4,7 +4,6 @@ import lombok.Data;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.IntStream;
 
 @Data
 public class Vote {
@@ -13,9 +12,18 @@ public class Vote {
 	private int labelNumber = 1;
 	private boolean showTotal = false;
 	private boolean voteOnce = false;
-	private List<String> optionTexts = new ArrayList<String>() {{
-		IntStream.range(0, 8).forEach(i -> add(""));
-	}};
+	/**
+	 * 選択肢の名前。選択肢数より多くてもよい(減らした分の名前も残しておく)
+	 */
+	private List<String> optionTexts = new ArrayList<>();
+	/**
+	 * 名前で投票するモード
+	 */
+	private boolean keywordVote = false;
+	/**
+	 * 選択肢ごとの別名(カンマ区切り)。添字は optionTexts と同じ
+	 */
+	private List<String> optionKeywords = new ArrayList<>();
 	private String optionBackground = "white";
 
 	public Vote() {
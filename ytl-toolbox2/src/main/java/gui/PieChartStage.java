@@ -3,18 +3,30 @@ package gui;
 import config.Config;
 import config.ConfigSerializable;
 import gui.tooltip.TooltipBehavior;
-import javafx.beans.binding.Bindings;
+import javafx.collections.ObservableList;
 import javafx.scene.chart.PieChart;
 import javafx.scene.control.Tooltip;
 import javafx.scene.layout.StackPane;
 import javafx.scene.shape.Circle;
 import javafx.util.Duration;
+import ytltoolbox.Messages;
 
 public class PieChartStage extends TransparentStage implements ConfigSerializable {
 
+	/**
+	 * 個別に表示する選択肢の数。これを超える分は「その他」にまとめる
+	 */
+	private static final int TOP_N = 8;
+
+	private final VoteModel model;
+	private final TooltipBehavior behavior;
+	private final PieChart pieChart;
+	private final int[] top = new int[TOP_N];
+
 	public PieChartStage(VoteModel model) {
+		this.model = model;
 
-		final TooltipBehavior behavior = new TooltipBehavior() {{
+		this.behavior = new TooltipBehavior() {{
 			//マウスが乗ってから0.1秒後に表示
 			setOpenDuration(new Duration(100));
 			//ずっと表示
@@ -24,24 +36,13 @@ public class PieChartStage extends TransparentStage implements ConfigSerializabl
 		}};
 
 
-		PieChart pieChart = new PieChart() {{
+		this.pieChart = new PieChart() {{
 			setLegendVisible(false);
 			setStartAngle(90);
-
-			model.getVoteData().forEach(vd -> {
-				Data d = new Data("", 0);
-				d.nameProperty().bind(vd.nameProperty());
-				d.pieValueProperty().bind(Bindings.when(model.isVoteOnceProperty())
-						.then(vd.singleCountProperty()).otherwise(vd.multiCountProperty()));
-				this.getData().add(d);
-				// pie tooltip
-				Tooltip tooltip = new Tooltip("") {{
-					textProperty().bind(d.nameProperty());
-					behavior.install(d.getNode(), this);
-				}};
-			});
-
 		}};
+		model.getAggregate().addListener(observable -> this.update());
+		model.isVoteOnceProperty().addListener(observable -> this.update());
+		this.update();
 
 		Circle circle = new Circle(50);
 		StackPane stackPane = new StackPane() {{
@@ -51,6 +52,53 @@ public class PieChartStage extends TransparentStage implements ConfigSerializabl
 
 	}
 
+	/**
+	 * 選択肢が TOP_N + 1 個以下なら番号順にすべて、それより多ければ票の多い TOP_N 個と「その他」を表示する
+	 */
+	private void update() {
+		VoteAggregate aggregate = this.model.getAggregate();
+		boolean single = this.model.isVoteOnceProperty().get();
+		int n = aggregate.getOptionCount();
+		int shown;
+		if (n <= TOP_N + 1) {
+			shown = n;
+		} else {
+			shown = aggregate.top(this.top, single);
+		}
+		boolean others = shown < n;
+
+		ObservableList<PieChart.Data> data = this.pieChart.getData();
+		int size = shown + (others ? 1 : 0);
+		while (data.size() > size) {
+			data.remove(data.size() - 1);
+		}
+		while (data.size() < size) {
+			PieChart.Data d = new PieChart.Data("", 0);
+			data.add(d);
+			// pie tooltip
+			Tooltip tooltip = new Tooltip("") {{
+				textProperty().bind(d.nameProperty());
+				behavior.install(d.getNode(), this);
+			}};
+		}
+
+		long sum = 0;
+		for (int k = 0; k < shown; k++) {
+			int i = n <= TOP_N + 1 ? k : this.top[k];
+			long v = single ? aggregate.getSingle(i) : aggregate.getMulti(i);
+			PieChart.Data d = data.get(k);
+			d.nameProperty().bind(this.model.getVoteData().get(i).nameProperty());
+			d.setPieValue(v);
+			sum += v;
+		}
+		if (others) {
+			PieChart.Data d = data.get(shown);
+			d.nameProperty().unbind();
+			d.setName(Messages.getString("gui.vote.others"));
+			d.setPieValue((single ? aggregate.getSingleTotal() : aggregate.getMultiTotal()) - sum);
+		}
+	}
+
 	@Override
 	public void loadConfig(Config config) {
 
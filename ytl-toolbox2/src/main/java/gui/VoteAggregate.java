@@ -0,0 +1,113 @@
+package gui;
+
+import javafx.beans.value.ObservableValueBase;
+import vote.VoteSnapshot;
+
+/**
+ * 画面に出す集計値(選択肢ごとの票数と割合、合計)をまとめて持つ。
+ * {@link #update} で全選択肢を1回走査して計算し直し、変更の通知は1回だけ行う。
+ */
+class VoteAggregate extends ObservableValueBase<VoteAggregate> {
+
+	private int optionCount;
+	private long[] single = new long[0];
+	private long[] multi = new long[0];
+	private double[] singleRatio = new double[0];
+	private double[] multiRatio = new double[0];
+	private long singleTotal;
+	private long multiTotal;
+
+	/**
+	 * @param snapshot    集計器の値
+	 * @param optionCount 表示する選択肢の数。合計と割合はこの範囲だけで計算する
+	 */
+	void update(VoteSnapshot snapshot, int optionCount) {
+		int n = Math.min(optionCount, snapshot.getOptionCount());
+		if (this.single.length != snapshot.getOptionCount()) {
+			int size = snapshot.getOptionCount();
+			this.single = new long[size];
+			this.multi = new long[size];
+			this.singleRatio = new double[size];
+			this.multiRatio = new double[size];
+		}
+		long s = 0;
+		long m = 0;
+		for (int i = 0; i < this.single.length; i++) {
+			this.single[i] = snapshot.getSingle(i);
+			this.multi[i] = snapshot.getMulti(i);
+			if (i < n) {
+				s += this.single[i];
+				m += this.multi[i];
+			}
+		}
+		for (int i = 0; i < this.single.length; i++) {
+			this.singleRatio[i] = i < n && s > 0 ? (double) this.single[i] / s : 0;
+			this.multiRatio[i] = i < n && m > 0 ? (double) this.multi[i] / m : 0;
+		}
+		this.optionCount = n;
+		this.singleTotal = s;
+		this.multiTotal = m;
+		this.fireValueChangedEvent();
+	}
+
+	@Override
+	public VoteAggregate getValue() {
+		return this;
+	}
+
+	int getOptionCount() {
+		return this.optionCount;
+	}
+
+	long getSingle(int option) {
+		return this.single[option];
+	}
+
+	long getMulti(int option) {
+		return this.multi[option];
+	}
+
+	double getSingleRatio(int option) {
+		return this.singleRatio[option];
+	}
+
+	double getMultiRatio(int option) {
+		return this.multiRatio[option];
+	}
+
+	/**
+	 * 票の多い選択肢を多い順に out へ入れる。同数なら番号の小さい方を先にする
+	 *
+	 * @param single true なら1人1票の票数で比べる
+	 * @return 入れた数
+	 */
+	int top(int[] out, boolean single) {
+		long[] counts = single ? this.single : this.multi;
+		int filled = 0;
+		for (int i = 0; i < this.optionCount; i++) {
+			long v = counts[i];
+			int pos;
+			if (filled < out.length) {
+				pos = filled++;
+			} else if (v > counts[out[out.length - 1]]) {
+				pos = out.length - 1;
+			} else {
+				continue;
+			}
+			while (pos > 0 && counts[out[pos - 1]] < v) {
+				out[pos] = out[pos - 1];
+				pos--;
+			}
+			out[pos] = i;
+		}
+		return filled;
+	}
+
+	long getSingleTotal() {
+		return this.singleTotal;
+	}
+
+	long getMultiTotal() {
+		return this.multiTotal;
+	}
+}
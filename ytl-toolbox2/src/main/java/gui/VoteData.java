@@ -1,11 +1,14 @@
 package gui;
 
-import javafx.beans.binding.DoubleBinding;
 import javafx.beans.property.*;
 import javafx.beans.value.ObservableValue;
 
 class VoteData {
 	private final StringProperty name;
+	/**
+	 * 名前で投票するときの別名(カンマ区切り)
+	 */
+	private final StringProperty keywords;
 	private final IntegerProperty singleCount;
 	private final IntegerProperty multiCount;
 	private final DoubleProperty singleRatio;
@@ -14,6 +17,7 @@ class VoteData {
 
 	public VoteData() {
 		name = new SimpleStringProperty();
+		keywords = new SimpleStringProperty("");
 		singleCount = new SimpleIntegerProperty();
 		multiCount = new SimpleIntegerProperty();
 		singleRatio = new SimpleDoubleProperty();
@@ -34,6 +38,18 @@ class VoteData {
 		this.name.set(name);
 	}
 
+	public String getKeywords() {
+		return keywords.get();
+	}
+
+	public StringProperty keywordsProperty() {
+		return keywords;
+	}
+
+	public void setKeywords(String keywords) {
+		this.keywords.set(keywords);
+	}
+
 	public int getSingleCount() {
 		return singleCount.get();
 	}
@@ -66,8 +82,8 @@ class VoteData {
 		return singleRatio;
 	}
 
-	void bindSingleRatio(DoubleBinding binding) {
-		singleRatio.bind(binding);
+	void setSingleRatio(double singleRatio) {
+		this.singleRatio.set(singleRatio);
 	}
 
 	public double getMultiRatio() {
@@ -78,8 +94,8 @@ class VoteData {
 		return multiRatio;
 	}
 
-	void bindMultiRatio(DoubleBinding binding) {
-		multiRatio.bind(binding);
+	void setMultiRatio(double multiRatio) {
+		this.multiRatio.set(multiRatio);
 	}
 
 	public String getLabelText() {
@@ -1,148 +1,464 @@
 package gui;
 
-import javafx.beans.binding.Bindings;
-import javafx.beans.binding.NumberBinding;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
 import javafx.beans.binding.StringBinding;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import lombok.extern.slf4j.Slf4j;
+import youtube.ChatBatch;
+import youtube.ChatBatchListener;
+import youtube.ChatMessage;
+import youtube.VoteManager;
+import youtube.VoteRouter;
+import vote.KeywordVoteClassifier;
+import vote.NumberVoteClassifier;
+import vote.RecountRules;
+import vote.RouteKeys;
+import vote.VoteClassifier;
+import vote.VoteJournal;
+import vote.VoteSnapshot;
+import vote.VoteTally;
+import vote.VoterRegistry;
+import ytltoolbox.Consts;
 import ytltoolbox.YtlToolbox;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+@Slf4j
 class VoteModel {
-	private static final int OPTION_SIZE_MAX = 8;
-	@SuppressWarnings("MalformedFormatString")
-	private static final String regex = String.format("^[1-%d]", OPTION_SIZE_MAX);
+	/**
+	 * 選択肢数の範囲。集計器は最大数分を最初に確保するので、選択肢数を変えても再確保しない
+	 */
+	static final int OPTION_SIZE_MIN = 2;
+	static final int OPTION_SIZE_MAX = 999;
+	/**
+	 * 正確に覚える投票者数。これを超えた分はブルームフィルタで判定する
+	 */
+	private static final int VOTER_CAPACITY = 1 << 18;
+	private static final long VOTER_BLOOM_BITS = 1L << 23;
+	/**
+	 * 画面へ反映する最短間隔。票がどれだけ速く届いても、描画はこの頻度までに抑える
+	 */
+	private static final long PUBLISH_INTERVAL_MS = 100;
+	/**
+	 * ジャーナルをディスクへ書き出す間隔。OSごと落ちた場合に失いうる票の範囲
+	 */
+	private static final long JOURNAL_COMMIT_INTERVAL_MS = 200;
+	private final NumberVoteClassifier classifier;
+	/**
+	 * 選択肢の名前と別名から作った判定器。名前や選択肢数が変わるたびに作り直して差し替える
+	 */
+	private KeywordVoteClassifier keywordClassifier;
 
 	private final IntegerProperty optionSize;
-	private final Set<String> keys;
+	/**
+	 * チャットを投票へ振り分ける。ポーラーは投票ごとに作り直すので、ポーラーを持たずに {@link #getVoteListener()} で受け取る
+	 */
+	private final VoteRouter router;
+	/**
+	 * 受付期間と集計。票は受信スレッドで数え、画面の値は {@link #publisher} がまとめて反映する。
+	 * 受付期間はウォーターマークで締め切り、票はジャーナルにも記録して、締め切る前にアプリが落ちたら次回起動時に再開する
+	 */
+	private final VoteManager manager;
+	/**
+	 * 受付中の投票の記録先。投票を始めるときに開き、締め切ったら閉じる。開けなければ null
+	 */
+	private VoteJournal journal;
+	/**
+	 * 最後に起きた記録の失敗。画面で知らせる
+	 */
+	private final ObjectProperty<IOException> journalFailure;
+	/**
+	 * 受付中か。締め切りは受信スレッドかタイマーで決まるので、FX スレッドで写して画面から監視できるようにする
+	 */
+	private final BooleanProperty open;
+	/**
+	 * 投票が替わった、または締め切られた。票数が増えていなくても反映する
+	 */
+	private final AtomicBoolean dirty;
+	/**
+	 * 描画のパルスに合わせて、変化があれば最大 {@link #PUBLISH_INTERVAL_MS} ごとに1回だけ反映する
+	 */
+	private final AnimationTimer publisher;
+	/**
+	 * 合計と割合。反映のたびに1回だけ再計算・通知する
+	 */
+	private final VoteAggregate aggregate;
+	private VoteSnapshot lastSnapshot;
 	private final IntegerProperty singleTotal;
 	private final IntegerProperty multiTotal;
+	/**
+	 * これまでに作った選択肢。選択肢数を減らしても名前を残すため、縮めない
+	 */
 	private final ObservableList<VoteData> voteData;
-	//	private final ObservableList<VoteData> voteData;
+	/**
+	 * 現在の選択肢数分の先頭部分。画面にはこちらを表示する
+	 */
+	private final ObservableList<VoteData> options;
 	private final BooleanProperty isLabelIndex;
 	private final BooleanProperty isNumberCount;
 	private final BooleanProperty isVoteOnce;
+	private final BooleanProperty isKeywordVote;
 
 
 	public VoteModel() {
 		optionSize = new SimpleIntegerProperty(4);
-		keys = new HashSet<>();
+		journalFailure = new SimpleObjectProperty<>();
+		open = new SimpleBooleanProperty();
+		classifier = new NumberVoteClassifier(optionSize.get());
+		keywordClassifier = new KeywordVoteClassifier(Collections.emptyList());
+		isKeywordVote = new SimpleBooleanProperty();
+		router = new VoteRouter();
+		manager = new VoteManager(router, OPTION_SIZE_MAX, newClassifier(),
+				() -> new VoterRegistry(VOTER_CAPACITY, VOTER_BLOOM_BITS, 4)) {
+			@Override
+			public void onVoteClosed(VoteSnapshot result) {
+				Platform.runLater(VoteModel.this::onClosed);
+			}
+		};
+		journal = openJournal();
+		manager.setJournal(journal);
+		dirty = new AtomicBoolean();
+		aggregate = new VoteAggregate();
+		lastSnapshot = new VoteTally(OPTION_SIZE_MAX).snapshot();
+		publisher = new AnimationTimer() {
+			private long last = 0;
+
+			@Override
+			public void handle(long now) {
+				if (now - last < PUBLISH_INTERVAL_MS * 1_000_000) {
+					return;
+				}
+				last = now;
+				refresh();
+			}
+		};
 		singleTotal = new SimpleIntegerProperty();
 		multiTotal = new SimpleIntegerProperty();
-		voteData = FXCollections.observableArrayList(Collections.nCopies(OPTION_SIZE_MAX, new VoteData()));
+		voteData = FXCollections.observableArrayList();
+		options = FXCollections.observableArrayList();
 		isLabelIndex = new SimpleBooleanProperty();
 		isNumberCount = new SimpleBooleanProperty();
 		isVoteOnce = new SimpleBooleanProperty();
+		isKeywordVote.addListener(observable -> manager.setClassifier(newClassifier()));
+		options.addListener((ListChangeListener<VoteData>) c -> rebuildKeywords());
 
-//		ObservableList<VoteData> trimmedVoteData = FXCollections.observableArrayList();
-
-//		voteData.addListener((ListChangeListener<? super VoteData>) c -> {
-//			while (c.next()) {
-//				for (int i = c.getFrom(); i < c.getTo(); i++) {
-//					if (i < trimmedVoteData.size()) {
-//						trimmedVoteData.set(i, voteData.get(i));
-//					}
-//				}
-//			}
-//		});
-//		optionSize.addListener((observable, oldValue, newValue) -> {
-//			if (trimmedVoteData.size() < newValue.intValue()) {
-//				trimmedVoteData.addAll(voteData.subList(trimmedVoteData.size(), newValue.intValue()));
-//			} else if (trimmedVoteData.size() < newValue.intValue()) {
-//				trimmedVoteData.remove(newValue.intValue() - 1, trimmedVoteData.size());
-//			}
-//		});
 		/*==================================================================================================*
-		 * for getter
+		 * total / ratio
 		 *==================================================================================================*/
-//		voteData = FXCollections.unmodifiableObservableList(trimmedVoteData);
-
-		NumberBinding sTotal = null;
-		NumberBinding mTotal = null;
-		for (int idx = 0; idx < OPTION_SIZE_MAX; idx++) {
-			final int i = idx;
-			final VoteData data = voteData.get(i);
-			/*==================================================================================================*
-			 * total
-			 *==================================================================================================*/
-			if (i == 0) {
-				sTotal = new SimpleIntegerProperty().add(data.singleCountProperty());
-				mTotal = new SimpleIntegerProperty().add(data.multiCountProperty());
-			} else {
-				sTotal = sTotal.add(Bindings.when(optionSize.greaterThan(i))
-						.then(data.singleCountProperty()).otherwise(0));
-				mTotal = sTotal.add(Bindings.when(optionSize.greaterThan(i))
-						.then(data.multiCountProperty()).otherwise(0));
-			}
-			/*==================================================================================================*
-			 * ratio
-			 *==================================================================================================*/
-			data.bindSingleRatio(data.singleCountProperty().divide(1.0).divide(singleTotal));
-			data.bindSingleRatio(data.multiCountProperty().divide(1.0).divide(multiTotal));
-
-			/*==================================================================================================*
-			 * label
-			 *==================================================================================================*/
-			StringBinding labelText = new StringBinding() {
-				{
-					super.bind(isLabelIndex, data.nameProperty(), isNumberCount, isVoteOnce, data.multiCountProperty());
+		aggregate.addListener(observable -> {
+			// 割合は票数と合計だけで決まるので、合計が同じなら票数の変わった選択肢だけを書き換える。
+			// 表示していない選択肢は、選択肢数を増やしたときの再計算で書き換わる
+			boolean totalChanged = singleTotal.get() != aggregate.getSingleTotal()
+					|| multiTotal.get() != aggregate.getMultiTotal();
+			for (int i = 0; i < options.size(); i++) {
+				VoteData data = options.get(i);
+				int single = (int) aggregate.getSingle(i);
+				int multi = (int) aggregate.getMulti(i);
+				if (!totalChanged && data.getSingleCount() == single && data.getMultiCount() == multi) {
+					continue;
 				}
+				data.setSingleCount(single);
+				data.setMultiCount(multi);
+				data.setSingleRatio(aggregate.getSingleRatio(i));
+				data.setMultiRatio(aggregate.getMultiRatio(i));
+			}
+			singleTotal.set((int) aggregate.getSingleTotal());
+			multiTotal.set((int) aggregate.getMultiTotal());
+		});
+		optionSize.addListener(observable -> {
+			int n = Math.max(OPTION_SIZE_MIN, Math.min(OPTION_SIZE_MAX, optionSize.get()));
+			classifier.setOptionCount(n);
+			ensureVoteData(n);
+			if (options.size() < n) {
+				options.addAll(voteData.subList(options.size(), n));
+			} else if (options.size() > n) {
+				options.remove(n, options.size());
+			}
+			aggregate.update(lastSnapshot, n);
+		});
+		ensureVoteData(optionSize.get());
+		options.setAll(voteData.subList(0, optionSize.get()));
+
+		aggregate.update(lastSnapshot, optionSize.get());
+		// 受付終了を過ぎていれば、再開してすぐに締め切る
+		if (manager.recover()) {
+			log.info("resumed an unfinished vote from {}", journalFileName());
+			open.set(true);
+			dirty.set(true);
+		}
+		publisher.start();
+	}
 
-				@Override
-				protected String computeValue() {
-					StringBuilder sb = new StringBuilder();
-					sb.append("[");
-					sb.append(isLabelIndex.get() ? ("" + (i + 1)) : data.getName());
-					sb.append("]\n");
-					if (isNumberCount.get()) {
-						sb.append(isVoteOnce.get() ? data.getSingleCount() : data.getMultiCount());
-					} else {
-						sb.append(String.format("%.0f", (isVoteOnce() ? data.getSingleRatio() : data.getMultiRatio()) * 100));
-						sb.append("%");
-					}
-					return sb.toString();
+	/**
+	 * 合成チャットの票は本番の記録と混ざらないよう別のファイルに記録する
+	 */
+	private static String journalFileName() {
+		return YtlToolbox.IS_DEMO ? Consts.VOTE_DEMO_JOURNAL_FILE_NAME : Consts.VOTE_JOURNAL_FILE_NAME;
+	}
+
+	/**
+	 * @return 開けなければ null。記録せずに集計だけ行う
+	 */
+	private VoteJournal openJournal() {
+		try {
+			VoteJournal journal = new VoteJournal(Paths.get(journalFileName()), JOURNAL_COMMIT_INTERVAL_MS);
+			journal.setOnFailure(this::onJournalFailure);
+			return journal;
+		} catch (IOException e) {
+			onJournalFailure(e);
+			return null;
+		}
+	}
+
+	/**
+	 * 記録できなくても集計は続ける。受信スレッドからも呼ばれる
+	 */
+	private void onJournalFailure(IOException e) {
+		log.error("vote journal error", e);
+		if (Platform.isFxApplicationThread()) {
+			journalFailure.set(e);
+		} else {
+			Platform.runLater(() -> journalFailure.set(e));
+		}
+	}
+
+	private void closeJournal() {
+		if (journal == null) {
+			return;
+		}
+		manager.setJournal(null);
+		try {
+			journal.close();
+		} catch (IOException e) {
+			log.error("vote journal error", e);
+		}
+		journal = null;
+	}
+
+	/**
+	 * 選択肢を size 個まで作る。FX スレッドから呼ぶこと
+	 */
+	void ensureVoteData(int size) {
+		for (int i = voteData.size(); i < Math.min(size, OPTION_SIZE_MAX); i++) {
+			voteData.add(newVoteData(i));
+		}
+	}
+
+	private VoteData newVoteData(int i) {
+		VoteData data = new VoteData();
+		StringBinding labelText = new StringBinding() {
+			{
+				super.bind(isLabelIndex, data.nameProperty(), isNumberCount, isVoteOnce, aggregate);
+			}
+
+			@Override
+			protected String computeValue() {
+				StringBuilder sb = new StringBuilder();
+				sb.append("[");
+				sb.append(isLabelIndex.get() ? ("" + (i + 1)) : data.getName());
+				sb.append("]\n");
+				if (isNumberCount.get()) {
+					sb.append(isVoteOnce.get() ? aggregate.getSingle(i) : aggregate.getMulti(i));
+				} else {
+					sb.append(Math.round((isVoteOnce() ? aggregate.getSingleRatio(i) : aggregate.getMultiRatio(i)) * 100));
+					sb.append("%");
 				}
-			};
-			data.bindLabelText(labelText);
+				return sb.toString();
+			}
+		};
+		data.bindLabelText(labelText);
+		InvalidationListener rebuild = observable -> {
+			if (i < options.size()) {
+				rebuildKeywords();
+			}
+		};
+		data.nameProperty().addListener(rebuild);
+		data.keywordsProperty().addListener(rebuild);
+		return data;
+	}
+
+	/**
+	 * 表示中の選択肢の名前と別名から判定器を作り直す
+	 */
+	private void rebuildKeywords() {
+		List<List<String>> keywords = new ArrayList<>(options.size());
+		for (VoteData data : options) {
+			List<String> words = new ArrayList<>();
+			if (data.getName() != null) {
+				words.add(data.getName());
+			}
+			if (data.getKeywords() != null) {
+				words.addAll(Arrays.asList(data.getKeywords().split("[,、，]")));
+			}
+			keywords.add(words);
 		}
-		singleTotal.bind(sTotal);
-		multiTotal.bind(mTotal);
+		keywordClassifier = new KeywordVoteClassifier(keywords);
+		manager.setClassifier(newClassifier());
 	}
 
-	public void addVote(String key, String message) {
-		int idx = parseIndex(message);
-		if (idx > 0) {
-			if (keys.add(key)) {
-				voteData.get(idx).setSingleCount(voteData.get(idx).getSingleCount() + 1);
+	/**
+	 * 番号、キーワード(有効なら)、デモの割り当ての順に判定する。
+	 * 振り分けの手がかりも同じ組み合わせにするので、どれにも当たりえないメッセージは数える前に除かれる
+	 */
+	private VoteClassifier newClassifier() {
+		NumberVoteClassifier number = classifier;
+		KeywordVoteClassifier keyword = isKeywordVote.get() ? keywordClassifier : null;
+		boolean demo = YtlToolbox.IS_DEMO;
+		RouteKeys keys = demo ? RouteKeys.ALL
+				: keyword == null ? number.routeKeys() : RouteKeys.numbersOrKeywords(keyword.routeKeys().getKeywords());
+		return new VoteClassifier() {
+			@Override
+			public int classify(CharSequence text) {
+				int idx = number.classify(text);
+				if (idx < 0 && keyword != null) {
+					idx = keyword.classify(text);
+				}
+				if (idx < 0 && demo) {
+					idx = text.charAt(0) % number.getOptionCount();
+				}
+				return idx;
 			}
-			voteData.get(idx).setMultiCount(voteData.get(idx).getMultiCount() + 1);
+
+			@Override
+			public RouteKeys routeKeys() {
+				return keys;
+			}
+		};
+	}
+
+	/**
+	 * @return チャットのバッチを受け取って数えるリスナー。どのスレッドから呼ばれてもよく、画面への反映は次の描画パルスでまとめて行う
+	 */
+	public ChatBatchListener getVoteListener() {
+		return router.getListener();
+	}
+
+	public void addVote(String key, String message) {
+		long now = System.currentTimeMillis();
+		router.getListener().handle(new ChatBatch(Collections.singletonList(
+				new ChatMessage(now, now, key, false, false, false, message)), now));
+	}
+
+	/**
+	 * 票と投票者を空にして、今から seconds 秒間の投票を始める。
+	 * 受付期間はチャットの投稿時刻で判定し、受付終了 + 許容遅延で自動的に締め切る
+	 */
+	public void open(int seconds) {
+		if (journal == null) {
+			journal = openJournal();
+			manager.setJournal(journal);
+		}
+		manager.open(seconds);
+		open.set(true);
+		dirty.set(true);
+	}
+
+	/**
+	 * 受付期間を今で打ち切る。遅れて届く票を待ってから締め切り、{@link #openProperty()} が false になる
+	 */
+	public void close() {
+		manager.close();
+	}
+
+	/**
+	 * 締め切られた。締め切った投票の記録はジャーナルから移されるので、ジャーナルも閉じる。FX スレッドで呼ぶ
+	 */
+	private void onClosed() {
+		if (manager.isOpen()) {
+			return; // 通知が届く前に次の投票を始めていた
 		}
+		closeJournal();
+		open.set(false);
+		dirty.set(true);
+	}
+
+	/**
+	 * @return 受付中の投票があれば true。前回の実行から再開した投票も含む
+	 */
+	public boolean isOpen() {
+		return open.get();
+	}
+
+	public ReadOnlyBooleanProperty openProperty() {
+		return open;
+	}
+
+	/**
+	 * @return 受付期間の長さ(ミリ秒)
+	 */
+	public long getDurationMillis() {
+		return manager.getDurationMillis();
+	}
+
+	/**
+	 * @return 受付終了までの残り時間(ミリ秒)。過ぎていれば 0
+	 */
+	public long getRemainingMillis() {
+		return manager.getRemainingMillis();
+	}
+
+	/**
+	 * 現在の投票(締め切った後なら直前の投票)を別の規則で数え直す。集計はバックグラウンドで行う
+	 *
+	 * @return 規則ごとの選択肢別の票数。まだ一度も投票していなければ空の配列
+	 */
+	public CompletableFuture<long[][]> recount(RecountRules... rules) {
+		return CompletableFuture.supplyAsync(() -> manager.recount(rules));
 	}
 
-	private int parseIndex(String message) {
-		if (YtlToolbox.IS_DEMO && !message.matches(regex)) {
-			message = "" + (1 + message.charAt(0) % 8);
+	/**
+	 * 1人1票(最初の票)・1人1票(最後の票)・全メッセージの3つの規則で数え直す
+	 *
+	 * @param sponsorWeight メンバーの票の重み
+	 * @param cutoffSeconds 受付開始からこの秒数以降に投稿された票は数えない
+	 * @return 規則ごとの選択肢別の票数。まだ一度も投票していなければ空の配列
+	 */
+	public CompletableFuture<long[][]> recount(int sponsorWeight, int cutoffSeconds) {
+		long cutoff = manager.getOpenedAt() + cutoffSeconds * 1000L;
+		return recount(
+				new RecountRules(RecountRules.Mode.FIRST, sponsorWeight, cutoff),
+				new RecountRules(RecountRules.Mode.LAST, sponsorWeight, cutoff),
+				new RecountRules(RecountRules.Mode.EVERY, sponsorWeight, cutoff));
+	}
+
+	/**
+	 * 票が増えたか、投票が替わったときだけ集計器の値を画面のプロパティに反映する。FX スレッドから呼ぶこと
+	 */
+	void refresh() {
+		boolean changed = dirty.getAndSet(false);
+		VoteSnapshot snapshot = manager.snapshot();
+		if (snapshot != null) {
+			// 投票中の票数は減らないので、全メッセージの合計が同じなら変化は無い
+			changed |= snapshot.getMultiTotal() != lastSnapshot.getMultiTotal();
+			lastSnapshot = snapshot;
 		}
-		if (message.matches(regex)) {
-			return Integer.parseInt(message) - 1;
+		if (changed) {
+			aggregate.update(lastSnapshot, optionSize.get());
 		}
-		return -1;
 	}
 
 	/*==================================================================================================*
 	 * accessors
 	 *==================================================================================================*/
-//	public ObservableList<VoteData> getVoteData() {
-//		return voteData;
-//	}
-
 	public int getOptionSize() {
 		return optionSize.get();
 	}
@@ -171,10 +487,26 @@ class VoteModel {
 		return multiTotal;
 	}
 
+	public IOException getJournalFailure() {
+		return journalFailure.get();
+	}
+
+	public ReadOnlyObjectProperty<IOException> journalFailureProperty() {
+		return journalFailure;
+	}
+
 	public ObservableList<VoteData> getVoteData() {
 		return voteData;
 	}
 
+	public ObservableList<VoteData> getOptions() {
+		return options;
+	}
+
+	VoteAggregate getAggregate() {
+		return aggregate;
+	}
+
 	public boolean isLabelIndex() {
 		return isLabelIndex.get();
 	}
@@ -203,6 +535,10 @@ class VoteModel {
 		return isVoteOnce.get();
 	}
 
+	public BooleanProperty isKeywordVoteProperty() {
+		return isKeywordVote;
+	}
+
 	public BooleanProperty isVoteOnceProperty() {
 		return isVoteOnce;
 	}
@@ -5,13 +5,10 @@ import config.ConfigSerializable;
 import config.Vote;
 import javafx.beans.binding.Bindings;
 import javafx.geometry.Insets;
-import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.input.MouseEvent;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Priority;
-import javafx.scene.layout.Region;
-import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import lombok.Getter;
 import ytltoolbox.Messages;
@@ -19,7 +16,6 @@ import ytltoolbox.Messages;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.IntStream;
 
 @Getter
 public class VoteOptionsStage extends TransparentStage implements ConfigSerializable {
@@ -52,46 +48,53 @@ public class VoteOptionsStage extends TransparentStage implements ConfigSerializ
 		super.setHeight(600);
 		super.setWidth(200);
 
-		VBox vbox = new VBox() {{
-			this.setSpacing(5.0);
+		// 選択肢が数百あっても表示中の行の分しかノードを作らない
+		ListView<VoteData> listView = new ListView<VoteData>(votePane.getModel().getOptions()) {{
 			this.setPadding(new Insets(10.0));
-			this.setFillWidth(true);
-		}};
-		super.setContent(vbox);
-
-		IntStream.range(0, 8).forEach(i -> {
-			HBox hbox = new HBox() {{
-				this.setStyle(cssColors.get(i) + cssBackRadius);
-				this.setMinHeight(Region.USE_COMPUTED_SIZE);
-				this.setMinWidth(Region.USE_COMPUTED_SIZE);
-				this.setPrefHeight(Region.USE_COMPUTED_SIZE);
-				this.setPrefWidth(Region.USE_COMPUTED_SIZE);
-				this.setMaxHeight(Region.USE_COMPUTED_SIZE);
-				this.setMaxWidth(Region.USE_COMPUTED_SIZE);
-				VBox.setVgrow(this, Priority.NEVER);
-				this.setPadding(new Insets(5.0));
-				Label label = new Label("label") {{
-					setWrapText(true);
-					textProperty().bind(Bindings.concat("" + (i + 1) + ". ",
-							votePane.getModel().getVoteData().get(i).nameProperty()));
-				}};
-
-				this.getChildren().add(label);
-
-				this.addEventHandler(MouseEvent.MOUSE_CLICKED, event -> {
-					TextInputDialog iptDlg = new TextInputDialog();
-					iptDlg.setTitle(Messages.getString("gui.voteOptions.dialog.title", "" + (i + 1)));
-					iptDlg.setHeaderText(null);
-					iptDlg.setContentText(Messages.getString("gui.voteOptions.dialog.text"));
-					Optional<String> result = iptDlg.showAndWait();
-					result.ifPresent(value -> { //値があった場合
-						votePane.getModel().getVoteData().get(i).nameProperty().set(result.get());
+			this.setCellFactory(lv -> new ListCell<VoteData>() {
+				{
+					this.setWrapText(true);
+					this.setPrefWidth(0);
+					this.addEventHandler(MouseEvent.MOUSE_CLICKED, event -> {
+						if (this.isEmpty()) {
+							return;
+						}
+						int i = this.getIndex();
+						TextInputDialog iptDlg = new TextInputDialog(this.getItem().getName());
+						iptDlg.setTitle(Messages.getString("gui.voteOptions.dialog.title", "" + (i + 1)));
+						iptDlg.setHeaderText(null);
+						iptDlg.setContentText(Messages.getString("gui.voteOptions.dialog.text"));
+						Optional<String> result = iptDlg.showAndWait();
+						result.ifPresent(value -> { //値があった場合
+							this.getItem().nameProperty().set(value);
+						});
+						if (!result.isPresent() || !votePane.getModel().isKeywordVoteProperty().get()) {
+							return;
+						}
+						// 名前で投票するときは別名も入力してもらう
+						TextInputDialog kwDlg = new TextInputDialog(this.getItem().getKeywords());
+						kwDlg.setTitle(Messages.getString("gui.voteOptions.dialog.title", "" + (i + 1)));
+						kwDlg.setHeaderText(null);
+						kwDlg.setContentText(Messages.getString("gui.voteOptions.dialog.keywords"));
+						kwDlg.showAndWait().ifPresent(value -> this.getItem().keywordsProperty().set(value));
 					});
-				});
-				visibleProperty().bind(votePane.getOptionSizeProperty().greaterThan(i));
-			}};
-			vbox.getChildren().add(hbox);
-		});
+				}
+
+				@Override
+				protected void updateItem(VoteData item, boolean empty) {
+					super.updateItem(item, empty);
+					this.textProperty().unbind();
+					if (empty || item == null) {
+						this.setText(null);
+						this.setStyle(null);
+					} else {
+						this.textProperty().bind(Bindings.concat("" + (this.getIndex() + 1) + ". ", item.nameProperty()));
+						this.setStyle(cssColors.get(this.getIndex() % cssColors.size()) + cssBackRadius);
+					}
+				}
+			});
+		}};
+		super.setContent(listView);
 	}
 
 	@Override
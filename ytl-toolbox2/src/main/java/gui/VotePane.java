@@ -6,6 +6,7 @@ import config.Vote;
 import javafx.animation.KeyFrame;
 import javafx.animation.KeyValue;
 import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.*;
 import javafx.event.ActionEvent;
@@ -15,17 +16,24 @@ import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.FlowPane;
+import javafx.scene.layout.GridPane;
 import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
 import javafx.util.Duration;
 import lombok.Getter;
 import org.controlsfx.control.SegmentedButton;
 import org.controlsfx.control.ToggleSwitch;
 import ytltoolbox.Consts;
 import ytltoolbox.Messages;
+import ytltoolbox.YtlToolbox;
+import youtube.BackpressurePolicy;
+import youtube.ChatPoller;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 @Getter
 class VotePane extends AnchorPane implements ConfigSerializable {
@@ -56,9 +64,11 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 	@FXML
 	private Label secondsLabel;
 	@FXML
+	private Button recountButton;
+	@FXML
 	private FlowPane voteSettingPane;
 	@FXML
-	private SegmentedButton optionSizeSegment;
+	private Spinner<Integer> optionSizeSpinner;
 	@FXML
 	private SegmentedButton labelTextSegment;
 	@FXML
@@ -67,6 +77,8 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 	private ToggleSwitch showTotalSwitch;
 	@FXML
 	private ToggleSwitch voteOnceSwitch;
+	@FXML
+	private ToggleSwitch keywordVoteSwitch;
 
 	/*==================================================================================================*
 	 * Properties
@@ -94,6 +106,15 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 	public static final int SEC_DEFAULT = 30;
 	public static final int SEC_MIN = 30;
 	public static final int SEC_MAX = 300;
+	public static final int RECOUNT_WEIGHT_MAX = 10;
+	/**
+	 * デモモードで投票中に合成チャットを流すポーラー。投票していない間は null
+	 */
+	private ChatPoller demoPoller;
+	/**
+	 * 受付期間の残りを表示する。締め切りは VoteModel が行うので、表示だけに使う
+	 */
+	private final Timeline timeLine = new Timeline();
 
 	VotePane(Stage owner) {
 		this.owner = owner;
@@ -147,8 +168,6 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 		this.secondsProgressBar.progressProperty().bind(this.elapseProperty.divide(this.secondsProperty));
 		this.secondsLabel.textProperty().bind(this.secondsProperty.subtract(this.elapseProperty).asString("%.1fs"));
 
-		Timeline timeLine = new Timeline();
-
 		this.seButton.textProperty().bind(Bindings.when(this.stateProperty.isEqualTo(State.IDLE))
 				.then(Messages.getString("gui.vote.se.start"))
 				.otherwise(Messages.getString("gui.vote.se.stop")));
@@ -162,43 +181,80 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 						alert.show();
 						break;
 					}
-					this.elapseProperty.set(0);
-					timeLine.getKeyFrames().clear();
-					timeLine.getKeyFrames()
-							.add(new KeyFrame(Duration.seconds(sec), new KeyValue(this.elapseProperty, sec)));
-					timeLine.setCycleCount(1);
-					timeLine.play();
+					this.model.open(sec);
+					this.startDemoChat();
+					this.playCountdown(sec, 0);
 					this.stateProperty.setValue(State.RUNNING);
 					break;
 				case RUNNING:
-					timeLine.stop();
-					this.elapseProperty.set(0);
-					this.stateProperty.setValue(State.IDLE);
+					// 遅れて届く票を待ってから締め切られる。それまでは押せないようにする
+					this.model.close();
+					this.timeLine.stop();
+					this.seButton.setDisable(true);
 					break;
 			}
 		});
+		// 受付終了 + 許容遅延で締め切られたら(停止を押した場合も)、合成チャットを止めて次の投票を始められるようにする
+		this.model.openProperty().addListener((observable, oldValue, open) -> {
+			if (!open && this.stateProperty.get() == State.RUNNING) {
+				this.stopDemoChat();
+				this.timeLine.stop();
+				this.elapseProperty.set(0);
+				this.seButton.setDisable(false);
+				this.stateProperty.setValue(State.IDLE);
+			}
+		});
+		// ウィンドウを閉じたら投票を打ち切り、合成チャットも止める
+		this.owner.addEventHandler(WindowEvent.WINDOW_HIDDEN, e -> {
+			if (this.stateProperty.get() == State.RUNNING) {
+				this.model.close();
+				this.stopDemoChat();
+			}
+		});
+		// 記録に失敗しても集計は続くが、落ちたときに票を復元できないことを知らせる
+		Consumer<IOException> showJournalFailure = failure -> {
+			Alert alert = new Alert(Alert.AlertType.WARNING);
+			alert.setHeaderText(Messages.getString("gui.vote.journalFailed"));
+			alert.setContentText(failure.getMessage());
+			alert.show();
+		};
+		this.model.journalFailureProperty().addListener((observable, oldValue, newValue) -> {
+			if (newValue != null) {
+				showJournalFailure.accept(newValue);
+			}
+		});
+		if (this.model.getJournalFailure() != null) {
+			showJournalFailure.accept(this.model.getJournalFailure());
+		}
+		// 前回落ちる前の投票を再開していれば、残り時間からカウントダウンを続ける
+		if (this.model.isOpen()) {
+			int sec = (int) Math.max(1, (this.model.getDurationMillis() + 999) / 1000);
+			this.secondsField.setText(String.valueOf(sec));
+			this.startDemoChat();
+			this.playCountdown(sec, sec - this.model.getRemainingMillis() / 1000.0);
+			this.stateProperty.setValue(State.RUNNING);
+		}
+		/*==================================================================================================*
+		 * recountButton
+		 *==================================================================================================*/
+		// 締め切った投票を、チャットを再生せずに1人1票(最初/最後)と全メッセージの規則で数え直して並べる
+		this.recountButton.disableProperty().bind(this.stateProperty.isNotEqualTo(State.IDLE));
+		this.recountButton.addEventHandler(ActionEvent.ACTION, e -> this.askRecount());
 		/*==================================================================================================*
 		 * voteSettingPane
 		 *==================================================================================================*/
 		this.voteSettingPane.disableProperty().bind(this.stateProperty.isNotEqualTo(State.IDLE));
 		/*==================================================================================================*
-		 * voteSettingPane>optionSizeSegment
+		 * voteSettingPane>optionSizeSpinner
 		 *==================================================================================================*/
-		IntStream.range(2, 9).mapToObj(i -> new ToggleButton("" + i))
-				.forEach(tb -> this.optionSizeSegment.getButtons().add(tb));
-		this.optionSizeSegment.getStyleClass().add(SegmentedButton.STYLE_CLASS_DARK);
-		this.optionSizeSegment.getToggleGroup().selectedToggleProperty().addListener((obs, o, n) -> {
-			if (n != null) {
-				System.out.println(((ToggleButton) n).getText());
-			} else if (o != null) {
-				o.setSelected(true);
-			}
-		});
-
-		this.optionSizeSegment.getToggleGroup().selectedToggleProperty().addListener((observable, oldValue,
-																					  n) -> this.optionSizeProperty.set(n == null ? 4 : Integer.parseInt(((ToggleButton) n).getText())));
-		this.optionSizeProperty.addListener((observable, oldValue, newValue) -> this.optionSizeSegment.getButtons()
-				.get(newValue.intValue() - 2).setSelected(true));
+		SpinnerValueFactory.IntegerSpinnerValueFactory optionSizeFactory = new SpinnerValueFactory.IntegerSpinnerValueFactory(
+				VoteModel.OPTION_SIZE_MIN, VoteModel.OPTION_SIZE_MAX, 4);
+		this.optionSizeSpinner.setValueFactory(optionSizeFactory);
+		this.optionSizeSpinner.setEditable(true);
+		this.optionSizeProperty.set(optionSizeFactory.getValue());
+		optionSizeFactory.valueProperty().addListener((observable, oldValue, n) -> this.optionSizeProperty.set(n));
+		this.optionSizeProperty.addListener((observable, oldValue, newValue) -> optionSizeFactory.setValue(newValue.intValue()));
+		this.model.optionSizeProperty().bind(this.optionSizeProperty);
 
 		/*==================================================================================================*
 		 * voteSettingPane>labelTextSegment
@@ -242,6 +298,108 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 
 		getShowTotalSwitch().selectedProperty().bindBidirectional(showTotalProperty);
 		getVoteOnceSwitch().selectedProperty().bindBidirectional(voteOnceProperty);
+		getKeywordVoteSwitch().selectedProperty().bindBidirectional(model.isKeywordVoteProperty());
+	}
+
+	/**
+	 * メンバーの票の重みと締切を入力してもらい、数え直す。失敗したときはエラーを表示する
+	 */
+	private void askRecount() {
+		int duration = (int) (this.model.getDurationMillis() / 1000);
+		Spinner<Integer> weightSpinner = new Spinner<>(1, RECOUNT_WEIGHT_MAX, 1);
+		weightSpinner.setEditable(true);
+		Spinner<Integer> cutoffSpinner = new Spinner<>(0, duration, duration);
+		cutoffSpinner.setEditable(true);
+		GridPane grid = new GridPane();
+		grid.setHgap(10);
+		grid.setVgap(10);
+		grid.addRow(0, new Label(Messages.getString("gui.vote.recount.sponsorWeight")), weightSpinner);
+		grid.addRow(1, new Label(Messages.getString("gui.vote.recount.cutoff")), cutoffSpinner);
+
+		Dialog<ButtonType> dialog = new Dialog<>();
+		dialog.initOwner(this.owner);
+		dialog.setTitle(Messages.getString("gui.vote.recount"));
+		dialog.getDialogPane().setContent(grid);
+		dialog.getDialogPane().getButtonTypes().setAll(ButtonType.OK, ButtonType.CANCEL);
+		if (dialog.showAndWait().filter(b -> b == ButtonType.OK).isPresent()) {
+			this.model.recount(weightSpinner.getValue(), cutoffSpinner.getValue())
+					.thenAccept(results -> Platform.runLater(() -> this.showRecount(results)))
+					.exceptionally(ex -> {
+						Platform.runLater(() -> this.showRecountFailure(ex));
+						return null;
+					});
+		}
+	}
+
+	private void showRecountFailure(Throwable ex) {
+		Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+		Alert alert = new Alert(Alert.AlertType.ERROR);
+		alert.initOwner(this.owner);
+		alert.setHeaderText(Messages.getString("gui.vote.recount.failed"));
+		alert.setContentText(String.valueOf(cause));
+		alert.show();
+	}
+
+	/**
+	 * 数え直した結果を選択肢ごとに「最初の票 / 最後の票 / 全メッセージ」の順で表示する
+	 *
+	 * @param results {@link VoteModel#recount} の結果。まだ一度も投票していなければ空
+	 */
+	private void showRecount(long[][] results) {
+		if (results.length == 0) {
+			return;
+		}
+		List<VoteData> options = this.model.getOptions();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < options.size(); i++) {
+			String name = options.get(i).getName();
+			sb.append("[").append(name == null || name.isEmpty() ? String.valueOf(i + 1) : name).append("] ");
+			for (int r = 0; r < results.length; r++) {
+				sb.append(r == 0 ? "" : " / ").append(results[r][i]);
+			}
+			sb.append("\n");
+		}
+		Alert alert = new Alert(Alert.AlertType.INFORMATION);
+		alert.initOwner(this.owner);
+		alert.setHeaderText(Messages.getString("gui.vote.recount.header"));
+		alert.setContentText(sb.toString());
+		alert.show();
+	}
+
+	/**
+	 * 受付期間 sec 秒のうち elapsed 秒が過ぎたところから、残り時間の表示を進める
+	 */
+	private void playCountdown(int sec, double elapsed) {
+		this.timeLine.stop();
+		this.elapseProperty.set(Math.min(elapsed, sec));
+		this.timeLine.getKeyFrames().setAll(new KeyFrame(Duration.seconds(Math.max(0, sec - elapsed)),
+				new KeyValue(this.elapseProperty, sec)));
+		this.timeLine.setCycleCount(1);
+		this.timeLine.playFromStart();
+	}
+
+	/**
+	 * デモモードなら合成チャットを通常のリスナー経路で流し始める。
+	 * 集計は受信側のスレッドで行い、画面には VoteModel がまとめて反映する
+	 */
+	private void startDemoChat() {
+		if (!YtlToolbox.IS_DEMO || this.demoPoller != null) {
+			return;
+		}
+		this.demoPoller = new ChatPoller(null);
+		this.demoPoller.setDemo(YtlToolbox.DEMO_CHAT);
+		this.demoPoller.newListenerGroup("vote", BackpressurePolicy.BLOCK, false).addListener(this.model.getVoteListener());
+		this.demoPoller.start();
+	}
+
+	/**
+	 * 合成チャットのポーリングと受け渡しのスレッドを止める
+	 */
+	private void stopDemoChat() {
+		if (this.demoPoller != null) {
+			this.demoPoller.shutdown();
+			this.demoPoller = null;
+		}
 	}
 
 	@Override
@@ -251,16 +409,24 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 		//		labelNumberProperty.set(vote.getLabelNumber());
 		this.labelTextSegment.getButtons().get(vote.getLabelText()).setSelected(true);
 		//		labelTextProperty.set(vote.getLabelText());
-		this.optionSizeSegment.getButtons().get(vote.getOptionSize() - 2).setSelected(true);
-		//		optionSizeProperty.set(vote.getOptionSize());
+		this.optionSizeProperty.set(Math.max(VoteModel.OPTION_SIZE_MIN, Math.min(VoteModel.OPTION_SIZE_MAX, vote.getOptionSize())));
 		this.showTotalProperty.set(vote.isShowTotal());
 		this.voteOnceProperty.set(vote.isVoteOnce());
+		model.isKeywordVoteProperty().set(vote.isKeywordVote());
 		List<String> texts = vote.getOptionTexts();
 		if (texts != null) {
-			for (int i = 0; i < texts.size(); i++) {
+			model.ensureVoteData(texts.size());
+			for (int i = 0; i < Math.min(texts.size(), model.getVoteData().size()); i++) {
 				model.getVoteData().get(i).nameProperty().set(texts.get(i));
 			}
 		}
+		List<String> keywords = vote.getOptionKeywords();
+		if (keywords != null) {
+			model.ensureVoteData(keywords.size());
+			for (int i = 0; i < Math.min(keywords.size(), model.getVoteData().size()); i++) {
+				model.getVoteData().get(i).keywordsProperty().set(keywords.get(i));
+			}
+		}
 	}
 
 	@Override
@@ -271,7 +437,9 @@ class VotePane extends AnchorPane implements ConfigSerializable {
 		vote.setOptionSize(this.optionSizeProperty.get());
 		vote.setShowTotal(this.showTotalProperty.get());
 		vote.setVoteOnce(this.voteOnceProperty.get());
+		vote.setKeywordVote(model.isKeywordVoteProperty().get());
 		config.getVote().setOptionTexts(model.getVoteData().stream().map(d -> d.nameProperty().get()).collect(Collectors.toList()));
+		config.getVote().setOptionKeywords(model.getVoteData().stream().map(d -> d.keywordsProperty().get()).collect(Collectors.toList()));
 	}
 
 	VoteModel getModel() {
@@ -0,0 +1,207 @@
+package vote;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * 複数のキーワードを1回の走査で探す Aho-Corasick オートマトン。
+ * キーワードはグループ単位で登録し、一致したグループの値を merge でまとめたものを返す。
+ * <p>
+ * 英字の大文字/小文字、全角/半角の英数字は区別しない。生成後は変更できず、走査中はメモリを確保しない。
+ */
+final class KeywordAutomaton {
+
+	private static final int ROOT = 0;
+
+	/**
+	 * 遷移表。(状態, 文字) を1つの long にしたキーのオープンアドレス法ハッシュ表
+	 */
+	private final long[] edgeKeys;
+	private final int[] edgeTargets;
+	private final int edgeMask;
+	/**
+	 * 失敗時の遷移先
+	 */
+	private final int[] fail;
+	/**
+	 * その状態で終わるキーワード(接尾辞を含む)の値。無ければ empty
+	 */
+	private final long[] output;
+	private final long empty;
+	private final LongBinaryOperator merge;
+
+	/**
+	 * @param groups  グループごとのキーワード。空文字や null は無視する
+	 * @param valueOf グループの添字からそのグループの値を求める
+	 * @param merge   複数のキーワードに一致したときに値をまとめる
+	 * @param empty   どのキーワードにも一致しないときの値
+	 */
+	KeywordAutomaton(List<? extends Collection<String>> groups, IntToLongFunction valueOf, LongBinaryOperator merge,
+					 long empty) {
+		this.empty = empty;
+		this.merge = merge;
+		// 状態数の上限はキーワードの総文字数 + 1
+		int maxStates = 1;
+		for (Collection<String> words : groups) {
+			if (words != null) {
+				for (String w : words) {
+					maxStates += w == null ? 0 : w.length();
+				}
+			}
+		}
+		int tableSize = Integer.highestOneBit(Math.max(2, maxStates) * 2 - 1) << 1;
+		this.edgeKeys = new long[tableSize];
+		this.edgeTargets = new int[tableSize];
+		this.edgeMask = tableSize - 1;
+		Arrays.fill(this.edgeKeys, -1L);
+		int[] fail = new int[maxStates];
+		long[] output = new long[maxStates];
+		Arrays.fill(output, empty);
+		// 各状態から出る遷移の文字。失敗遷移を幅優先で求めるときに使う
+		StringBuilder[] children = new StringBuilder[maxStates];
+
+		int states = 1;
+		for (int group = 0; group < groups.size(); group++) {
+			Collection<String> words = groups.get(group);
+			if (words == null) {
+				continue;
+			}
+			for (String w : words) {
+				if (w == null || w.trim().isEmpty()) {
+					continue;
+				}
+				w = w.trim();
+				int s = ROOT;
+				for (int i = 0; i < w.length(); i++) {
+					char c = normalize(w.charAt(i));
+					int next = this.edge(s, c);
+					if (next < 0) {
+						next = states++;
+						this.putEdge(s, c, next);
+						if (children[s] == null) {
+							children[s] = new StringBuilder();
+						}
+						children[s].append(c);
+					}
+					s = next;
+				}
+				output[s] = this.mergeValue(output[s], valueOf.applyAsLong(group));
+			}
+		}
+
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		if (children[ROOT] != null) {
+			for (int i = 0; i < children[ROOT].length(); i++) {
+				int child = this.edge(ROOT, children[ROOT].charAt(i));
+				fail[child] = ROOT;
+				queue.add(child);
+			}
+		}
+		while (!queue.isEmpty()) {
+			int s = queue.poll();
+			if (children[s] == null) {
+				continue;
+			}
+			for (int i = 0; i < children[s].length(); i++) {
+				char c = children[s].charAt(i);
+				int child = this.edge(s, c);
+				int f = fail[s];
+				while (f != ROOT && this.edge(f, c) < 0) {
+					f = fail[f];
+				}
+				int target = this.edge(f, c);
+				fail[child] = target >= 0 && target != child ? target : ROOT;
+				// 接尾辞で終わるキーワードも、この状態で一致したことにする
+				output[child] = this.mergeValue(output[child], output[fail[child]]);
+				queue.add(child);
+			}
+		}
+		this.fail = Arrays.copyOf(fail, states);
+		this.output = Arrays.copyOf(output, states);
+	}
+
+	/**
+	 * @param stop この値になったらそれ以上走査しない
+	 * @return 一致したキーワードの値をまとめたもの。一致しなければ empty
+	 */
+	long scan(CharSequence text, long stop) {
+		long found = this.empty;
+		int s = ROOT;
+		for (int i = 0; i < text.length(); i++) {
+			char c = normalize(text.charAt(i));
+			int next;
+			while ((next = this.edge(s, c)) < 0 && s != ROOT) {
+				s = this.fail[s];
+			}
+			s = next < 0 ? ROOT : next;
+			if (this.output[s] != this.empty) {
+				found = this.mergeValue(found, this.output[s]);
+				if (found == stop) {
+					return found;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return 状態数。キーワードが1つも無ければ1
+	 */
+	int getStateCount() {
+		return this.fail.length;
+	}
+
+	private long mergeValue(long a, long b) {
+		if (a == this.empty) {
+			return b;
+		}
+		if (b == this.empty) {
+			return a;
+		}
+		return this.merge.applyAsLong(a, b);
+	}
+
+	private int edge(int state, char c) {
+		long key = ((long) state << 16) | c;
+		int i = slot(key);
+		while (this.edgeKeys[i] != -1L) {
+			if (this.edgeKeys[i] == key) {
+				return this.edgeTargets[i];
+			}
+			i = (i + 1) & this.edgeMask;
+		}
+		return -1;
+	}
+
+	private void putEdge(int state, char c, int target) {
+		long key = ((long) state << 16) | c;
+		int i = slot(key);
+		while (this.edgeKeys[i] != -1L) {
+			i = (i + 1) & this.edgeMask;
+		}
+		this.edgeKeys[i] = key;
+		this.edgeTargets[i] = target;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & this.edgeMask;
+	}
+
+	/**
+	 * 全角英数字を半角にし、英字を小文字にそろえる
+	 */
+	static char normalize(char c) {
+		if ('！' <= c && c <= '～') {
+			c = (char) (c - '！' + '!');
+		}
+		if ('A' <= c && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return Character.toLowerCase(c);
+	}
+}
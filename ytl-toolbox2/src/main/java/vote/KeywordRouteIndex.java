@@ -0,0 +1,75 @@
+package vote;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 複数の投票の {@link RouteKeys} をまとめた索引。メッセージが一致しうる投票の集合をビットで返す。
+ * キーワードは全投票分を1つの Aho-Corasick オートマトンにまとめるので、投票がいくつあっても本文を1回走査するだけで済む。
+ */
+public final class KeywordRouteIndex {
+
+	/**
+	 * 登録できる投票の数(ビット集合の幅)
+	 */
+	public static final int MAX_ROUTES = 64;
+
+	/**
+	 * すべてのメッセージを受け取る投票
+	 */
+	private final long allMask;
+	/**
+	 * 番号で始まるメッセージを受け取る投票
+	 */
+	private final long numberMask;
+	/**
+	 * キーワードを持つ投票
+	 */
+	private final long keywordMask;
+	private final KeywordAutomaton automaton;
+
+	/**
+	 * @param routes 投票ごとの手がかり。添字がビットの位置になる
+	 */
+	public KeywordRouteIndex(List<RouteKeys> routes) {
+		if (routes.size() > MAX_ROUTES) {
+			throw new IllegalArgumentException("routes: " + routes.size());
+		}
+		long all = 0;
+		long numbers = 0;
+		long keywords = 0;
+		List<Collection<String>> groups = new ArrayList<>(routes.size());
+		for (int i = 0; i < routes.size(); i++) {
+			RouteKeys r = routes.get(i);
+			if (r.isAll()) {
+				all |= 1L << i;
+			}
+			if (r.isNumbers()) {
+				numbers |= 1L << i;
+			}
+			if (!r.getKeywords().isEmpty()) {
+				keywords |= 1L << i;
+			}
+			groups.add(r.getKeywords());
+		}
+		this.allMask = all;
+		this.numberMask = numbers;
+		this.keywordMask = keywords;
+		this.automaton = keywords == 0 ? null : new KeywordAutomaton(groups, i -> 1L << i, (a, b) -> a | b, 0L);
+	}
+
+	/**
+	 * @return 一致しうる投票のビット集合
+	 */
+	public long match(CharSequence text) {
+		long mask = this.allMask;
+		if (this.numberMask != 0 && NumberVoteClassifier.startsWithNumber(text)) {
+			mask |= this.numberMask;
+		}
+		if (this.automaton != null) {
+			mask |= this.automaton.scan(text, this.keywordMask);
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,56 @@
+package vote;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 選択肢ごとのキーワード(名前や別名)を本文中から探し、見つかった選択肢への投票とみなす。
+ * 全キーワードを1つの Aho-Corasick オートマトンにまとめるので、選択肢がいくつあっても本文を1回走査するだけで済む。
+ * 複数の選択肢のキーワードが含まれるメッセージはどちらとも決められないので投票とみなさない。
+ * <p>
+ * 英字の大文字/小文字、全角/半角の英数字は区別しない。生成後は変更できず、判定中はメモリを確保しない。
+ */
+public final class KeywordVoteClassifier implements VoteClassifier {
+
+	/**
+	 * 複数の選択肢のキーワードに一致した
+	 */
+	private static final int AMBIGUOUS = -2;
+
+	private final KeywordAutomaton automaton;
+	private final RouteKeys routeKeys;
+
+	/**
+	 * @param keywords 選択肢ごとのキーワード。添字が選択肢の添字になる。空文字や null は無視する
+	 */
+	public KeywordVoteClassifier(List<? extends Collection<String>> keywords) {
+		this.automaton = new KeywordAutomaton(keywords, option -> option, (a, b) -> a == b ? a : AMBIGUOUS, NOT_A_VOTE);
+		List<String> all = new ArrayList<>();
+		for (Collection<String> words : keywords) {
+			if (words != null) {
+				all.addAll(words);
+			}
+		}
+		this.routeKeys = RouteKeys.keywords(Collections.unmodifiableList(all));
+	}
+
+	@Override
+	public int classify(CharSequence text) {
+		int found = (int) this.automaton.scan(text, AMBIGUOUS);
+		return found == AMBIGUOUS ? NOT_A_VOTE : found;
+	}
+
+	@Override
+	public RouteKeys routeKeys() {
+		return this.routeKeys;
+	}
+
+	/**
+	 * @return 状態数。キーワードが1つも無ければ1
+	 */
+	public int getStateCount() {
+		return this.automaton.getStateCount();
+	}
+}
@@ -0,0 +1,102 @@
+package vote;
+
+/**
+ * 選択肢の番号だけを書いたメッセージを投票とみなす。
+ * 半角数字、全角数字、丸数字(①～⑳)を受け付け、先頭の # / ＃ と前後の空白は無視する。
+ * 正規表現を使わず本文を1回走査するだけで判定する。
+ */
+public final class NumberVoteClassifier implements VoteClassifier {
+
+	private static final char CIRCLED_1 = '①';
+	private static final char CIRCLED_20 = '⑳';
+
+	private volatile int optionCount;
+
+	/**
+	 * @param optionCount 選択肢の数。これより大きい番号は投票とみなさない
+	 */
+	public NumberVoteClassifier(int optionCount) {
+		this.optionCount = optionCount;
+	}
+
+	@Override
+	public int classify(CharSequence text) {
+		int end = text.length();
+		while (end > 0 && isSpace(text.charAt(end - 1))) {
+			end--;
+		}
+		int i = 0;
+		while (i < end && isSpace(text.charAt(i))) {
+			i++;
+		}
+		if (i < end && (text.charAt(i) == '#' || text.charAt(i) == '＃')) {
+			i++;
+		}
+		if (i >= end) {
+			return NOT_A_VOTE;
+		}
+		int max = this.optionCount;
+		char c = text.charAt(i);
+		if (CIRCLED_1 <= c && c <= CIRCLED_20) {
+			int n = c - CIRCLED_1 + 1;
+			return i + 1 == end && n <= max ? n - 1 : NOT_A_VOTE;
+		}
+		int n = 0;
+		for (; i < end; i++) {
+			int d = digit(text.charAt(i));
+			if (d < 0) {
+				return NOT_A_VOTE;
+			}
+			n = n * 10 + d;
+			if (n > max) {
+				return NOT_A_VOTE;
+			}
+		}
+		return n == 0 ? NOT_A_VOTE : n - 1;
+	}
+
+	@Override
+	public RouteKeys routeKeys() {
+		return RouteKeys.NUMBERS;
+	}
+
+	/**
+	 * 空白と # / ＃ を除いた先頭が数字かどうか。{@link #classify} が投票とみなしうるメッセージはすべて true になる
+	 */
+	public static boolean startsWithNumber(CharSequence text) {
+		int i = 0;
+		while (i < text.length() && isSpace(text.charAt(i))) {
+			i++;
+		}
+		if (i < text.length() && (text.charAt(i) == '#' || text.charAt(i) == '＃')) {
+			i++;
+		}
+		if (i >= text.length()) {
+			return false;
+		}
+		char c = text.charAt(i);
+		return digit(c) >= 0 || (CIRCLED_1 <= c && c <= CIRCLED_20);
+	}
+
+	public int getOptionCount() {
+		return this.optionCount;
+	}
+
+	public void setOptionCount(int optionCount) {
+		this.optionCount = optionCount;
+	}
+
+	private static int digit(char c) {
+		if ('0' <= c && c <= '9') {
+			return c - '0';
+		}
+		if ('０' <= c && c <= '９') {
+			return c - '０';
+		}
+		return -1;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '　' || c == '\t';
+	}
+}
@@ -0,0 +1,44 @@
+package vote;
+
+import lombok.Data;
+
+/**
+ * 締め切った投票を数え直すときの規則。{@link VoteColumns#recount} に渡す
+ */
+@Data
+public class RecountRules {
+
+	public enum Mode {
+		/**
+		 * 全メッセージを数える
+		 */
+		EVERY,
+		/**
+		 * 1人1票。最初の票を数える
+		 */
+		FIRST,
+		/**
+		 * 1人1票。最後の票を数える(投票し直しを認める)
+		 */
+		LAST,
+	}
+
+	private Mode mode = Mode.EVERY;
+	/**
+	 * メンバー(スポンサー)の1票の重み。1なら他の視聴者と同じ
+	 */
+	private int sponsorWeight = 1;
+	/**
+	 * この投稿時刻以降の票は数えない
+	 */
+	private long cutoff = Long.MAX_VALUE;
+
+	public RecountRules() {
+	}
+
+	public RecountRules(Mode mode, int sponsorWeight, long cutoff) {
+		this.mode = mode;
+		this.sponsorWeight = sponsorWeight;
+		this.cutoff = cutoff;
+	}
+}
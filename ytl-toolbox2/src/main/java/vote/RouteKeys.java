@@ -0,0 +1,56 @@
+package vote;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * 判定器が投票とみなしうるメッセージの手がかり。
+ * 同じチャットで複数の投票を受け付けるとき、各メッセージを一致しうる投票にだけ渡すために使う。
+ */
+public final class RouteKeys {
+
+	/**
+	 * 手がかりが無い。すべてのメッセージを受け取る
+	 */
+	public static final RouteKeys ALL = new RouteKeys(true, false, Collections.emptyList());
+	/**
+	 * 番号で始まるメッセージだけを受け取る
+	 */
+	public static final RouteKeys NUMBERS = new RouteKeys(false, true, Collections.emptyList());
+
+	private final boolean all;
+	private final boolean numbers;
+	private final Collection<String> keywords;
+
+	private RouteKeys(boolean all, boolean numbers, Collection<String> keywords) {
+		this.all = all;
+		this.numbers = numbers;
+		this.keywords = keywords;
+	}
+
+	/**
+	 * いずれかのキーワードを含むメッセージだけを受け取る
+	 */
+	public static RouteKeys keywords(Collection<String> keywords) {
+		return new RouteKeys(false, false, keywords);
+	}
+
+	/**
+	 * 番号で始まるか、いずれかのキーワードを含むメッセージを受け取る
+	 */
+	public static RouteKeys numbersOrKeywords(Collection<String> keywords) {
+		return new RouteKeys(false, true, keywords);
+	}
+
+	public boolean isAll() {
+		return this.all;
+	}
+
+	public boolean isNumbers() {
+		return this.numbers;
+	}
+
+	public Collection<String> getKeywords() {
+		return this.keywords;
+	}
+}
@@ -0,0 +1,23 @@
+package vote;
+
+/**
+ * チャットの本文が投票かどうか、どの選択肢への投票かを判定する。
+ * 全メッセージに対して呼ばれるので、実装はメモリを確保せずに判定すること。
+ */
+@FunctionalInterface
+public interface VoteClassifier {
+
+	int NOT_A_VOTE = -1;
+
+	/**
+	 * @return 選択肢の添字(0始まり)。投票でなければ {@link #NOT_A_VOTE}
+	 */
+	int classify(CharSequence text);
+
+	/**
+	 * @return 投票とみなしうるメッセージの手がかり。同じチャットで複数の投票を受け付けるときの振り分けに使う
+	 */
+	default RouteKeys routeKeys() {
+		return RouteKeys.ALL;
+	}
+}
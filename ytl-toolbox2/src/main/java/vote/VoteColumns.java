@@ -0,0 +1,136 @@
+package vote;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 1回の投票で数えた票をそのまま残しておく列指向の表。投稿時刻・投稿者の指紋・選択肢・メンバーかどうかを列ごとの配列に持つ。
+ * 集計規則を変えて数え直すときは、チャットを再生せずにこの表を {@link #recount} で並列に走査する。
+ * <p>
+ * 配列は {@link #CHUNK_ROWS} 行ずつのかたまりで確保するので、行が増えても既存の行はコピーしない。
+ * 書き込んだ行は変更しないので、数え直しは追記と並行して行える(数え直しを始めた時点までの行が対象)。
+ * <p>
+ * 追記はロックを取らない。かたまりは書くスレッドごとに1つずつ持ち、一杯になったら次のかたまりの番号をカウンターから取る。
+ * かたまりに書くのは持ち主のスレッドだけなので、書いた行数を公開するだけで数え直しから読めるようになり、書き手同士が待ち合うこともない。
+ * 行の並びはかたまりの中でだけ届いた順になるので、数え直しで順序が要るときは投稿時刻で比べる。
+ */
+public final class VoteColumns {
+
+	static final int CHUNK_BITS = 16;
+	static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_ROWS - 1;
+	/**
+	 * かたまりの数の上限。行番号が int に収まる分
+	 */
+	private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+	/**
+	 * {@link #CHUNK_ROWS} 行分の列
+	 */
+	static final class Chunk {
+		final long[] time = new long[CHUNK_ROWS];
+		final long[] author = new long[CHUNK_ROWS];
+		final short[] option = new short[CHUNK_ROWS];
+		final boolean[] sponsor = new boolean[CHUNK_ROWS];
+		/**
+		 * 書き終えた行数。持ち主のスレッドだけが増やす
+		 */
+		final AtomicInteger filled = new AtomicInteger();
+	}
+
+	/**
+	 * 1回の投票分の行。{@link #reset()} で丸ごと差し替える
+	 */
+	private static final class Table {
+		/**
+		 * かたまりの置き場。番号を取ったスレッドが置く
+		 */
+		final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+		/**
+		 * 番号を取ったかたまりの数
+		 */
+		final AtomicInteger claimed = new AtomicInteger();
+		/**
+		 * スレッドごとの書きかけのかたまり
+		 */
+		final ThreadLocal<Chunk> writing = new ThreadLocal<>();
+
+		Chunk claim() {
+			int c = this.claimed.getAndIncrement();
+			if (c >= MAX_CHUNKS) {
+				throw new IllegalStateException("vote columns are full");
+			}
+			Chunk chunk = new Chunk();
+			this.chunks.set(c, chunk);
+			this.writing.set(chunk);
+			return chunk;
+		}
+	}
+
+	private volatile Table table = new Table();
+
+	/**
+	 * どのスレッドから呼んでもよい
+	 *
+	 * @param time    投稿時刻
+	 * @param author  投稿者の指紋
+	 * @param option  選択肢の添字
+	 * @param sponsor メンバー(スポンサー)の票なら true
+	 */
+	public void append(long time, long author, int option, boolean sponsor) {
+		Table t = this.table;
+		Chunk chunk = t.writing.get();
+		int i = chunk == null ? CHUNK_ROWS : chunk.filled.get();
+		if (i == CHUNK_ROWS) {
+			chunk = t.claim();
+			i = 0;
+		}
+		chunk.time[i] = time;
+		chunk.author[i] = author;
+		chunk.option[i] = (short) option;
+		chunk.sponsor[i] = sponsor;
+		// 行を書き終えてから行数を増やす。数え直しは増えた行数までしか読まない
+		chunk.filled.lazySet(i + 1);
+	}
+
+	/**
+	 * 全行を捨てる。追記している最中に呼ばないこと。数え直しの途中でも、その数え直しは捨てる前の行を読み続ける
+	 */
+	public void reset() {
+		this.table = new Table();
+	}
+
+	/**
+	 * @return 書き終えた行数
+	 */
+	public int size() {
+		Table t = this.table;
+		int size = 0;
+		for (int c = 0, n = Math.min(t.claimed.get(), MAX_CHUNKS); c < n; c++) {
+			Chunk chunk = t.chunks.get(c);
+			if (chunk != null) {
+				size += chunk.filled.get();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 規則ごとに数え直す。規則が複数あれば同時に走査する。重いので FX スレッドからは呼ばないこと
+	 *
+	 * @param optionCount 選択肢の数。これ以上の添字の票は数えない
+	 * @return 規則ごとの選択肢別の票数
+	 */
+	public long[][] recount(int optionCount, RecountRules... rules) {
+		Table t = this.table;
+		int n = Math.min(t.claimed.get(), MAX_CHUNKS);
+		Chunk[] chunks = new Chunk[n];
+		int[] filled = new int[n];
+		for (int c = 0; c < n; c++) {
+			// 番号を取ってまだ置いていないかたまりは空として扱う
+			chunks[c] = t.chunks.get(c);
+			filled[c] = chunks[c] == null ? 0 : chunks[c].filled.get();
+		}
+		return VoteRecount.run(chunks, filled, optionCount, rules);
+	}
+}
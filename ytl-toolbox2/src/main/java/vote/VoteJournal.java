@@ -0,0 +1,352 @@
+package vote;
+
+import ytltoolbox.Fingerprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 数えた票を1件ずつ追記する固定長レコードのジャーナル。ファイルをメモリにマップして書くので、追記は配列への書き込みと変わらない。
+ * アプリが落ちても書いた分はOSに残り、次回起動時に締め切られていない投票の集計を {@link VoteSession#recover} で作り直せる。
+ * <p>
+ * 締め切った投票の記録は別のファイル(ジャーナルのファイル名 + "." + 投票の番号)へ移し、ジャーナルは空に戻す。
+ * 移したファイルも同じ形式なので、後から開いて {@link #replay(Visitor)} で結果を検証できる。
+ * ジャーナルの領域は縮めずに先頭から再利用するので、大きさは最も票の多かった投票の分で止まる。
+ * <p>
+ * ファイルの形式: 先頭の {@link #RECORD_BYTES} バイトがヘッダー
+ * ([{@link #MAGIC} int][{@link #VERSION} int][世代 long][記録した最大の投票の番号 long])、以降は
+ * [投票の番号 long][投稿時刻 long][投稿者の指紋 long][選択肢 int][検査値 int] の繰り返し。
+ * 選択肢が負のレコードは投票の開始({@link #OPEN})、締切({@link #CLOSE})、受付終了の変更({@link #END})を表す。
+ * 票の選択肢の欄は下位16bitが選択肢の添字で、メンバーの票なら {@link #SPONSOR} のビットを立てる。
+ * 検査値が合わないレコードで読むのをやめるので、書きかけのレコードや未使用の領域は無視される。
+ * 検査値にはヘッダーの世代も混ぜるので、世代を進めれば古いレコードは消さなくても無効になる。
+ * <p>
+ * ディスクへの書き出し(force)は {@code commitIntervalMs} ごとにまとめて行う(グループコミット)。
+ * OSごと落ちた場合に失うのは最後の書き出し以降の票だけで、票を数えるスレッドは書き出しを待たない。
+ */
+public final class VoteJournal implements Closeable {
+
+	static final int MAGIC = 0x59544C4A; // "YTLJ"
+	static final int VERSION = 2;
+	public static final int RECORD_BYTES = 32;
+
+	/**
+	 * レコードの種類。0以上は票で、値が選択肢の添字
+	 */
+	public static final int OPEN = -1;
+	public static final int CLOSE = -2;
+	public static final int END = -3;
+	private static final int SPONSOR = 1 << 16;
+	private static final int OPTION_MASK = SPONSOR - 1;
+
+	/**
+	 * 最初に確保する大きさ。足りなくなったら倍にする
+	 */
+	private static final long INITIAL_BYTES = 4L << 20;
+	private static final long MAX_BYTES = Integer.MAX_VALUE / RECORD_BYTES * (long) RECORD_BYTES;
+
+	/**
+	 * レコードを1件ずつ受け取る
+	 */
+	public interface Visitor {
+		/**
+		 * @param type      {@link #OPEN}、{@link #CLOSE}、{@link #END}、または選択肢の添字
+		 * @param sessionId 投票の番号
+		 * @param time      票なら投稿時刻、開始なら受付開始、締切なら締め切った時刻、受付終了の変更なら新しい受付終了
+		 * @param value     票なら投稿者の指紋、開始なら受付終了
+		 * @param sponsor   メンバーの票なら true
+		 */
+		void accept(int type, long sessionId, long time, long value, boolean sponsor);
+	}
+
+	private final Path file;
+	private final FileChannel channel;
+	private final ScheduledExecutorService flusher;
+	private MappedByteBuffer buffer;
+	/**
+	 * 次に書くレコードの位置(バイト)
+	 */
+	private int position;
+	/**
+	 * 追記した件数と、書き出し済みの件数
+	 */
+	private long appended = 0;
+	private volatile long forced = 0;
+	private long lastSessionId = 0;
+	/**
+	 * ヘッダーの世代。ジャーナルを空に戻すたびに進める
+	 */
+	private long generation = 0;
+	/**
+	 * 最後に開始した投票が締め切られていなければ、その開始レコードの位置
+	 */
+	private int unclosed = -1;
+	/**
+	 * 領域を広げられなかった。以降の票は記録しない
+	 */
+	private volatile IOException failure;
+	private volatile Consumer<IOException> onFailure;
+
+	/**
+	 * @param file             ジャーナルのファイル。無ければ作る
+	 * @param commitIntervalMs ディスクへ書き出す間隔
+	 * @throws IOException ファイルを開けないか、ジャーナルではない
+	 */
+	public VoteJournal(Path file, long commitIntervalMs) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean created = this.channel.size() == 0;
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.channel.size(), INITIAL_BYTES));
+		if (created) {
+			this.buffer.putInt(0, MAGIC);
+			this.buffer.putInt(4, VERSION);
+		} else if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+			this.channel.close();
+			throw new IOException("not a vote journal: " + file);
+		} else {
+			this.generation = this.buffer.getLong(8);
+			this.lastSessionId = this.buffer.getLong(16);
+		}
+		this.position = this.scan();
+		// 書きかけのレコードの後ろに古い実行の有効なレコードが残っていると、次回の読み込みで混ざるので消しておく
+		for (int p = this.position; p + RECORD_BYTES <= this.buffer.capacity(); p += RECORD_BYTES) {
+			if (this.buffer.getInt(p + 28) != 0) {
+				this.buffer.putInt(p + 28, 0);
+			}
+		}
+		this.buffer.force();
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "VoteJournal");
+			t.setDaemon(true);
+			return t;
+		});
+		this.flusher.scheduleWithFixedDelay(this::sync, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 有効なレコードの終わりを探し、最後の投票の状態を覚えておく
+	 *
+	 * @return 有効なレコードの終わりの位置
+	 */
+	private int scan() {
+		int p = RECORD_BYTES;
+		for (; p + RECORD_BYTES <= this.buffer.capacity(); p += RECORD_BYTES) {
+			if (!this.isValid(p)) {
+				break;
+			}
+			int type = this.buffer.getInt(p + 24);
+			long sessionId = this.buffer.getLong(p);
+			if (type == OPEN) {
+				this.lastSessionId = Math.max(this.lastSessionId, sessionId);
+				this.unclosed = p;
+			} else if (type == CLOSE && this.unclosed >= 0 && this.buffer.getLong(this.unclosed) == sessionId) {
+				this.unclosed = -1;
+			}
+		}
+		return p;
+	}
+
+	private boolean isValid(int p) {
+		int check = this.buffer.getInt(p + 28);
+		return check != 0 && check == check(this.generation, this.buffer.getLong(p), this.buffer.getLong(p + 8),
+				this.buffer.getLong(p + 16), this.buffer.getInt(p + 24));
+	}
+
+	/**
+	 * @return 0 にならない検査値。0 は未使用の領域を表す
+	 */
+	private static int check(long generation, long sessionId, long time, long value, int type) {
+		long h = Fingerprint.mix((sessionId * 31 + time) ^ generation);
+		h = Fingerprint.mix(h ^ value) ^ type;
+		int c = (int) (h ^ (h >>> 32));
+		return c == 0 ? 1 : c;
+	}
+
+	void open(long sessionId, long start, long end) {
+		this.append(sessionId, start, end, OPEN);
+	}
+
+	void vote(long sessionId, long publishedAt, long author, int option, boolean sponsor) {
+		this.append(sessionId, publishedAt, author, sponsor ? option | SPONSOR : option);
+	}
+
+	void changeEnd(long sessionId, long end) {
+		this.append(sessionId, end, 0, END);
+	}
+
+	/**
+	 * 締切は結果の根拠になるので、すぐに書き出す。その後、締め切った投票の記録を別のファイルへ移す
+	 */
+	void close(long sessionId, long closedAt) {
+		this.append(sessionId, closedAt, 0, CLOSE);
+		this.sync();
+		this.rotate(sessionId);
+	}
+
+	/**
+	 * ジャーナルの全レコードを別のファイルへ書き写し、世代を進めてジャーナルを空に戻す。
+	 * 新しい投票が既に始まっていれば、その記録を失わないよう何もしない
+	 */
+	private synchronized void rotate(long sessionId) {
+		if (this.unclosed >= 0) {
+			return;
+		}
+		Path archive = this.file.resolveSibling(this.file.getFileName() + "." + sessionId);
+		ByteBuffer records = this.buffer.duplicate();
+		records.position(0);
+		records.limit(this.position);
+		try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (records.hasRemaining()) {
+				out.write(records);
+			}
+			out.force(true);
+		} catch (IOException e) {
+			// 書き写せなければジャーナルに残したまま追記を続ける
+			this.report(e);
+			return;
+		}
+		this.generation++;
+		this.buffer.putLong(8, this.generation);
+		this.buffer.putLong(16, this.lastSessionId);
+		this.buffer.force();
+		this.position = RECORD_BYTES;
+		// 領域が足りずに記録をやめていても、空に戻したので再開できる
+		this.failure = null;
+	}
+
+	private synchronized void append(long sessionId, long time, long value, int type) {
+		if (this.failure != null) {
+			return;
+		}
+		if (this.position + RECORD_BYTES > this.buffer.capacity() && !this.grow()) {
+			return;
+		}
+		MappedByteBuffer b = this.buffer;
+		int p = this.position;
+		b.putLong(p, sessionId);
+		b.putLong(p + 8, time);
+		b.putLong(p + 16, value);
+		b.putInt(p + 24, type);
+		// 検査値は最後に書く。途中で落ちたレコードは読み込み時に無視される
+		b.putInt(p + 28, check(this.generation, sessionId, time, value, type));
+		this.position = p + RECORD_BYTES;
+		this.appended++;
+		if (type == OPEN) {
+			this.lastSessionId = Math.max(this.lastSessionId, sessionId);
+			this.unclosed = p;
+		} else if (type == CLOSE) {
+			this.unclosed = -1;
+		}
+	}
+
+	private boolean grow() {
+		long size = Math.min(MAX_BYTES, (long) this.buffer.capacity() * 2);
+		try {
+			if (size <= this.buffer.capacity()) {
+				throw new IOException("vote journal is full");
+			}
+			this.buffer.force();
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return true;
+		} catch (IOException e) {
+			this.failure = e;
+			this.report(e);
+			return false;
+		}
+	}
+
+	private void report(IOException e) {
+		Consumer<IOException> listener = this.onFailure;
+		if (listener != null) {
+			listener.accept(e);
+		}
+	}
+
+	/**
+	 * 追記済みのレコードをディスクへ書き出す。前回から追記が無ければ何もしない
+	 */
+	public void sync() {
+		MappedByteBuffer b;
+		long n;
+		synchronized (this) {
+			b = this.buffer;
+			n = this.appended;
+		}
+		if (n != this.forced) {
+			b.force();
+			this.forced = n;
+		}
+	}
+
+	/**
+	 * 全レコードを先頭から順に渡す。監査用
+	 */
+	public void replay(Visitor visitor) {
+		this.replay(RECORD_BYTES, visitor);
+	}
+
+	/**
+	 * @param from レコードの位置(バイト)
+	 */
+	synchronized void replay(int from, Visitor visitor) {
+		MappedByteBuffer b = this.buffer;
+		for (int p = from; p < this.position; p += RECORD_BYTES) {
+			int type = b.getInt(p + 24);
+			visitor.accept(type < 0 ? type : type & OPTION_MASK, b.getLong(p), b.getLong(p + 8), b.getLong(p + 16),
+					type >= 0 && (type & SPONSOR) != 0);
+		}
+	}
+
+	/**
+	 * @return 締め切られずに終わった投票の開始レコードの位置。無ければ -1
+	 */
+	synchronized int findUnclosed() {
+		return this.unclosed;
+	}
+
+	/**
+	 * @return 記録にある最大の投票の番号。次の投票の番号はこれより大きくする
+	 */
+	public synchronized long getLastSessionId() {
+		return this.lastSessionId;
+	}
+
+	/**
+	 * @return 記録したレコード数(ヘッダーを除く)
+	 */
+	public synchronized long size() {
+		return this.position / RECORD_BYTES - 1;
+	}
+
+	/**
+	 * @return 領域を広げられず記録をやめた原因。記録できていれば null
+	 */
+	public IOException getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * @param onFailure 記録できなくなったときや、締め切った投票の記録を移せなかったときに呼ばれる。
+	 *                  票を数えているスレッドから呼ばれるので、すぐに戻ること
+	 */
+	public void setOnFailure(Consumer<IOException> onFailure) {
+		this.onFailure = onFailure;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.flusher.shutdownNow();
+		this.sync();
+		this.channel.close();
+	}
+}
@@ -0,0 +1,234 @@
+package vote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * {@link VoteColumns} の数え直し。かたまり({@link VoteColumns.Chunk})単位で fork-join プールに分けて走査する。
+ * <p>
+ * かたまりごとに読む行数は呼び出し側が最初に決めておくので、数え直しの途中で追記された行は読まない。
+ * 全メッセージを数える規則は、かたまりごとに選択肢別の合計を出して足し合わせるだけ。
+ * 1人1票の規則は投稿者ごとに1票を選ぶ必要があるので、投稿者の指紋の上位ビットで行を分割してから、分割ごとに独立に選ぶ。
+ * 1. かたまりごとに、分割ごとの行数を数える
+ * 2. かたまりごとに、行番号を分割ごとの区画へ書き込む(区画の中は行の順のまま)
+ * 3. 分割ごとに、投稿者→選んだ行 の表を作って数える
+ */
+final class VoteRecount {
+
+	private static final int PARTITION_BITS = 8;
+	private static final int PARTITIONS = 1 << PARTITION_BITS;
+
+	private final VoteColumns.Chunk[] chunks;
+	/**
+	 * かたまりごとの読む行数
+	 */
+	private final int[] filled;
+	private final int chunkCount;
+	private final int optionCount;
+	private final RecountRules.Mode mode;
+	private final long sponsorWeight;
+	private final long cutoff;
+
+	private VoteRecount(VoteColumns.Chunk[] chunks, int[] filled, int optionCount, RecountRules rules) {
+		this.chunks = chunks;
+		this.filled = filled;
+		this.chunkCount = chunks.length;
+		this.optionCount = optionCount;
+		// 走査中に変更されても影響しないよう、規則は最初に読み取っておく
+		this.mode = rules.getMode();
+		this.sponsorWeight = rules.getSponsorWeight();
+		this.cutoff = rules.getCutoff();
+	}
+
+	/**
+	 * @param filled かたまりごとの読む行数。0 のかたまりは null でもよい
+	 */
+	static long[][] run(VoteColumns.Chunk[] chunks, int[] filled, int optionCount, RecountRules... rules) {
+		return ForkJoinPool.commonPool().invoke(new RecursiveTask<long[][]>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected long[][] compute() {
+				List<ForkJoinTask<long[]>> tasks = new ArrayList<>(rules.length);
+				for (RecountRules rule : rules) {
+					tasks.add(ForkJoinTask.adapt(new VoteRecount(chunks, filled, optionCount, rule)::count));
+				}
+				ForkJoinTask.invokeAll(tasks);
+				long[][] results = new long[rules.length][];
+				for (int i = 0; i < results.length; i++) {
+					results[i] = tasks.get(i).join();
+				}
+				return results;
+			}
+		});
+	}
+
+	/**
+	 * [lo, hi) を半分ずつに分けて leaf を並列に呼び、結果の配列を足し合わせる
+	 */
+	private static final class Range extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final int lo;
+		private final int hi;
+		private final IntFunction<long[]> leaf;
+
+		private Range(int lo, int hi, IntFunction<long[]> leaf) {
+			this.lo = lo;
+			this.hi = hi;
+			this.leaf = leaf;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (this.hi - this.lo <= 0) {
+				return null;
+			}
+			if (this.hi - this.lo == 1) {
+				return this.leaf.apply(this.lo);
+			}
+			int mid = (this.lo + this.hi) >>> 1;
+			Range left = new Range(this.lo, mid, this.leaf);
+			left.fork();
+			long[] right = new Range(mid, this.hi, this.leaf).compute();
+			return add(left.join(), right);
+		}
+	}
+
+	private static long[] add(long[] a, long[] b) {
+		if (a == null) {
+			return b;
+		}
+		if (b != null) {
+			for (int i = 0; i < a.length; i++) {
+				a[i] += b[i];
+			}
+		}
+		return a;
+	}
+
+	private long[] count() {
+		long[] result = this.mode == RecountRules.Mode.EVERY
+				? new Range(0, this.chunkCount, this::sumChunk).compute()
+				: this.countOnePerPerson();
+		return result == null ? new long[this.optionCount] : result;
+	}
+
+	private int rowsOf(int c) {
+		return this.filled[c];
+	}
+
+	private boolean accepts(VoteColumns.Chunk chunk, int i) {
+		return chunk.time[i] < this.cutoff && chunk.option[i] < this.optionCount;
+	}
+
+	private long weightOf(VoteColumns.Chunk chunk, int i) {
+		return chunk.sponsor[i] ? this.sponsorWeight : 1;
+	}
+
+	private static int partitionOf(long author) {
+		// 指紋は撹拌済みなので上位ビットをそのまま使う。下位ビットは分割内の表の添字に使う
+		return (int) (author >>> (64 - PARTITION_BITS));
+	}
+
+	private long[] sumChunk(int c) {
+		VoteColumns.Chunk chunk = this.chunks[c];
+		long[] result = new long[this.optionCount];
+		for (int i = 0, n = this.rowsOf(c); i < n; i++) {
+			if (this.accepts(chunk, i)) {
+				result[chunk.option[i]] += this.weightOf(chunk, i);
+			}
+		}
+		return result;
+	}
+
+	private long[] countOnePerPerson() {
+		// 1. 分割ごとの行数
+		int[][] offsets = new int[this.chunkCount][PARTITIONS];
+		new Range(0, this.chunkCount, c -> {
+			VoteColumns.Chunk chunk = this.chunks[c];
+			int[] counts = offsets[c];
+			for (int i = 0, n = this.rowsOf(c); i < n; i++) {
+				if (this.accepts(chunk, i)) {
+					counts[partitionOf(chunk.author[i])]++;
+				}
+			}
+			return null;
+		}).compute();
+		// 分割ごとの区画を決め、その中をかたまりの順に割り当てる
+		int[] starts = new int[PARTITIONS + 1];
+		int pos = 0;
+		for (int p = 0; p < PARTITIONS; p++) {
+			starts[p] = pos;
+			for (int c = 0; c < this.chunkCount; c++) {
+				int n = offsets[c][p];
+				offsets[c][p] = pos;
+				pos += n;
+			}
+		}
+		starts[PARTITIONS] = pos;
+		// 2. 行番号を区画へ
+		int[] rows = new int[pos];
+		new Range(0, this.chunkCount, c -> {
+			VoteColumns.Chunk chunk = this.chunks[c];
+			int[] next = offsets[c];
+			int base = c << VoteColumns.CHUNK_BITS;
+			for (int i = 0, n = this.rowsOf(c); i < n; i++) {
+				if (this.accepts(chunk, i)) {
+					rows[next[partitionOf(chunk.author[i])]++] = base + i;
+				}
+			}
+			return null;
+		}).compute();
+		// 3. 分割ごとに1人1票を選んで数える
+		return new Range(0, PARTITIONS, p -> this.countPartition(rows, starts[p], starts[p + 1])).compute();
+	}
+
+	private long[] countPartition(int[] rows, int from, int to) {
+		int len = to - from;
+		if (len == 0) {
+			return null;
+		}
+		// 負荷率を 0.5 以下に保つ。指紋は0にならないので0を空とみなす
+		int tableSize = Integer.highestOneBit(len * 2 - 1) << 1;
+		int mask = tableSize - 1;
+		long[] keys = new long[tableSize];
+		int[] chosen = new int[tableSize];
+		for (int k = from; k < to; k++) {
+			int row = rows[k];
+			VoteColumns.Chunk chunk = this.chunks[row >>> VoteColumns.CHUNK_BITS];
+			int i = row & VoteColumns.CHUNK_MASK;
+			long author = chunk.author[i];
+			int slot = (int) author & mask;
+			while (keys[slot] != 0 && keys[slot] != author) {
+				slot = (slot + 1) & mask;
+			}
+			if (keys[slot] == 0) {
+				keys[slot] = author;
+				chosen[slot] = row;
+				continue;
+			}
+			// 区画の中は行の順だが、届いた順と投稿時刻の順は一致しないことがあるので時刻で比べる
+			long time = chunk.time[i];
+			int prev = chosen[slot];
+			long prevTime = this.chunks[prev >>> VoteColumns.CHUNK_BITS].time[prev & VoteColumns.CHUNK_MASK];
+			if (this.mode == RecountRules.Mode.LAST ? time >= prevTime : time < prevTime) {
+				chosen[slot] = row;
+			}
+		}
+		long[] result = new long[this.optionCount];
+		for (int slot = 0; slot < tableSize; slot++) {
+			if (keys[slot] != 0) {
+				int row = chosen[slot];
+				VoteColumns.Chunk chunk = this.chunks[row >>> VoteColumns.CHUNK_BITS];
+				int i = row & VoteColumns.CHUNK_MASK;
+				result[chunk.option[i]] += this.weightOf(chunk, i);
+			}
+		}
+		return result;
+	}
+}
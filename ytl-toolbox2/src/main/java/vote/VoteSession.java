@@ -0,0 +1,357 @@
+package vote;
+
+import ytltoolbox.Fingerprint;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 1つの投票の受付状態。受付期間、判定器、集計器を変更できない {@link Epoch} にまとめ、
+ * 開始・期間変更・締切はいずれも現在の Epoch を1回の compare-and-set で差し替えて行う。
+ * <p>
+ * 票を数える側は {@link #enter()} で Epoch を1つ受け取り、そのバッチの間はその Epoch に対して数える。
+ * 途中で差し替えられても、古い Epoch の票が新しい投票に混ざることはない。
+ * 締切時は受付中のバッチが数え終わるのを待ってから結果を確定するので、確定後に票が増えることもない。
+ * <p>
+ * {@link VoteJournal} を渡すと、開始・票・受付終了の変更・締切をすべて記録し、アプリが落ちても {@link #recover} で集計を作り直せる。
+ */
+public final class VoteSession {
+
+	/**
+	 * ある時点の受付状態。生成後は変更できない
+	 */
+	public static final class Epoch {
+		private final long id;
+		private final long start;
+		private final long end;
+		private final boolean closed;
+		private final VoteClassifier classifier;
+		private final Counters counters;
+
+		private Epoch(long id, long start, long end, boolean closed, VoteClassifier classifier, Counters counters) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.closed = closed;
+			this.classifier = classifier;
+			this.counters = counters;
+		}
+
+		/**
+		 * @return 投票ごとに振られる番号。期間変更や締切では変わらない
+		 */
+		public long getId() {
+			return this.id;
+		}
+
+		public long getStart() {
+			return this.start;
+		}
+
+		public long getEnd() {
+			return this.end;
+		}
+
+		public boolean isClosed() {
+			return this.closed;
+		}
+
+		public VoteClassifier getClassifier() {
+			return this.classifier;
+		}
+
+		/**
+		 * @return 投稿時刻が受付期間内なら true
+		 */
+		public boolean accepts(long publishedAt) {
+			return this.start <= publishedAt && publishedAt < this.end;
+		}
+
+		/**
+		 * 本文を判定し、投票なら数える。{@link #enter()} で受け取った Epoch に対してのみ呼ぶこと
+		 *
+		 * @return 数えた選択肢の添字。数えなければ {@link VoteClassifier#NOT_A_VOTE}
+		 */
+		public int count(long publishedAt, String authorId, CharSequence text) {
+			return this.count(publishedAt, authorId, false, text);
+		}
+
+		/**
+		 * @param sponsor メンバー(スポンサー)の票なら true。数え直しで重みを付けるのに使う
+		 */
+		public int count(long publishedAt, String authorId, boolean sponsor, CharSequence text) {
+			if (!this.accepts(publishedAt) || text == null || text.length() == 0) {
+				return VoteClassifier.NOT_A_VOTE;
+			}
+			int option = this.classifier.classify(text);
+			if (option >= 0) {
+				long author = Fingerprint.of(authorId);
+				this.counters.tally.record(option, this.counters.voters.add(author));
+				this.counters.columns.append(publishedAt, author, option, sponsor);
+				if (this.counters.journal != null) {
+					this.counters.journal.vote(this.id, publishedAt, author, option, sponsor);
+				}
+			}
+			return option;
+		}
+
+		public VoteSnapshot snapshot() {
+			return this.counters.tally.snapshot();
+		}
+
+		/**
+		 * この投票の票を、チャットを再生せずに別の規則で数え直す。締め切った後も次の投票を始めるまでは呼べる
+		 *
+		 * @return 規則ごとの選択肢別の票数
+		 * @see VoteColumns#recount
+		 */
+		public long[][] recount(RecountRules... rules) {
+			return this.counters.columns.recount(this.counters.tally.getOptionCount(), rules);
+		}
+
+		private Epoch withEnd(long end) {
+			return new Epoch(this.id, this.start, end, this.closed, this.classifier, this.counters);
+		}
+
+		private Epoch withClassifier(VoteClassifier classifier) {
+			return new Epoch(this.id, this.start, this.end, this.closed, classifier, this.counters);
+		}
+
+		private Epoch asClosed() {
+			return new Epoch(this.id, this.start, this.end, true, this.classifier, this.counters);
+		}
+	}
+
+	/**
+	 * 1回の投票分の集計器。2組を交互に使い、締め切った投票の結果は次の投票を始めるまで読める
+	 */
+	private static final class Counters {
+		private final VoteTally tally;
+		private final VoterRegistry voters;
+		/**
+		 * 数えた票そのもの。数え直しに使う
+		 */
+		private final VoteColumns columns = new VoteColumns();
+		/**
+		 * この集計器で数えている投票の記録先。開始時に決め、Epoch の差し替えで数える側へ公開する
+		 */
+		private VoteJournal journal;
+		/**
+		 * この集計器に数えている最中のバッチ数
+		 */
+		private final AtomicInteger inFlight = new AtomicInteger();
+		/**
+		 * true になった後は新たに数え始めない
+		 */
+		private volatile boolean sealed = true;
+
+		private Counters(VoteTally tally, VoterRegistry voters) {
+			this.tally = tally;
+			this.voters = voters;
+		}
+
+		private void reset() {
+			this.tally.reset();
+			this.voters.reset();
+			this.columns.reset();
+		}
+
+		/**
+		 * 新たに数え始めるのを止め、数えている最中のバッチが終わるのを待つ
+		 */
+		private void sealAndDrain() {
+			this.sealed = true;
+			while (this.inFlight.get() != 0) {
+				LockSupport.parkNanos(10_000);
+			}
+		}
+	}
+
+	private final Counters[] buffers = new Counters[2];
+	private final AtomicReference<Epoch> current = new AtomicReference<>();
+	private volatile VoteJournal journal;
+	private long nextId = 1;
+
+	/**
+	 * @param optionCount 選択肢数の上限
+	 * @param voters      1人1票の判定に使う集合を作る。2回呼ばれる
+	 */
+	public VoteSession(int optionCount, Supplier<VoterRegistry> voters) {
+		this(optionCount, voters, null);
+	}
+
+	/**
+	 * @param journal 開始・票・締切を記録する。null なら記録しない
+	 */
+	public VoteSession(int optionCount, Supplier<VoterRegistry> voters, VoteJournal journal) {
+		for (int i = 0; i < this.buffers.length; i++) {
+			this.buffers[i] = new Counters(new VoteTally(optionCount), voters.get());
+		}
+		this.setJournal(journal);
+	}
+
+	/**
+	 * 記録先を替える。受付中の投票は開始時の記録先へ記録し続け、次に {@link #open} した投票から新しい記録先を使う
+	 *
+	 * @param journal null なら記録しない
+	 */
+	public synchronized void setJournal(VoteJournal journal) {
+		this.journal = journal;
+		if (journal != null) {
+			// 前回の実行と番号が重ならないようにする
+			this.nextId = Math.max(this.nextId, journal.getLastSessionId() + 1);
+		}
+	}
+
+	/**
+	 * 新しい投票を始める。受付中の投票があれば締め切り、締切を記録してから始める
+	 *
+	 * @return 新しい Epoch
+	 */
+	public synchronized Epoch open(long start, long end, VoteClassifier classifier) {
+		Epoch prev = this.current.get();
+		if (prev != null && !prev.closed) {
+			// 締切を記録しないと、次回起動時に前の投票が締め切られていないものとして再開される
+			this.close(prev);
+			prev = this.current.get();
+		}
+		// 前回使っていない方の集計器は、前回の開始時に数え終わりを確認済みなので安全に空にできる
+		Counters counters = prev != null && prev.counters == this.buffers[0] ? this.buffers[1] : this.buffers[0];
+		counters.reset();
+		counters.journal = this.journal;
+		counters.sealed = false;
+		Epoch next = new Epoch(this.nextId++, start, end, false, classifier, counters);
+		if (counters.journal != null) {
+			counters.journal.open(next.id, start, end);
+		}
+		this.current.set(next);
+		if (prev != null) {
+			prev.counters.sealAndDrain();
+		}
+		return next;
+	}
+
+	/**
+	 * 受付期間の終わりを変える
+	 *
+	 * @return 変更後の Epoch。expected が既に差し替えられていれば null
+	 */
+	public Epoch changeEnd(Epoch expected, long end) {
+		Epoch next = expected.withEnd(end);
+		if (!this.current.compareAndSet(expected, next)) {
+			return null;
+		}
+		// 再開したときに元の受付終了に戻らないよう記録する
+		if (next.counters.journal != null) {
+			next.counters.journal.changeEnd(next.id, end);
+		}
+		return next;
+	}
+
+	/**
+	 * 判定器を差し替える。受付中でも、次に {@link #enter()} したバッチから新しい判定器を使う
+	 */
+	public void changeClassifier(VoteClassifier classifier) {
+		Epoch e;
+		do {
+			e = this.current.get();
+			if (e == null) {
+				return;
+			}
+		} while (!this.current.compareAndSet(e, e.withClassifier(classifier)));
+	}
+
+	/**
+	 * 投票を締め切り、数え途中のバッチが終わるのを待ってから結果を返す
+	 *
+	 * @param expected 締め切る投票。null なら現在の投票
+	 * @return 確定した結果。既に締め切られているか別の投票に替わっていれば null
+	 */
+	public VoteSnapshot close(Epoch expected) {
+		Epoch e;
+		do {
+			e = this.current.get();
+			if (e == null || e.closed || (expected != null && e.id != expected.id)) {
+				return null;
+			}
+		} while (!this.current.compareAndSet(e, e.asClosed()));
+		e.counters.sealAndDrain();
+		if (e.counters.journal != null) {
+			e.counters.journal.close(e.id, System.currentTimeMillis());
+		}
+		return e.snapshot();
+	}
+
+	/**
+	 * 前回の実行で締め切られずに終わった投票を、ジャーナルの票を数え直して再開する。
+	 * 起動直後、まだ {@link #open} していないときに呼ぶこと
+	 *
+	 * @param classifier 再開後の票に使う判定器
+	 * @return 再開した Epoch。再開する投票が無ければ null
+	 */
+	public synchronized Epoch recover(VoteClassifier classifier) {
+		VoteJournal journal = this.journal;
+		if (journal == null || this.current.get() != null) {
+			return null;
+		}
+		int from = journal.findUnclosed();
+		if (from < 0) {
+			return null;
+		}
+		Counters counters = this.buffers[0];
+		counters.reset();
+		counters.journal = journal;
+		long[] open = new long[3];
+		journal.replay(from, (type, sessionId, time, value, sponsor) -> {
+			if (type == VoteJournal.OPEN) {
+				open[0] = sessionId;
+				open[1] = time;
+				open[2] = value;
+			} else if (type == VoteJournal.END && sessionId == open[0]) {
+				open[2] = time;
+			} else if (type >= 0 && sessionId == open[0]) {
+				counters.tally.record(type, counters.voters.add(value));
+				counters.columns.append(time, value, type, sponsor);
+			}
+		});
+		counters.sealed = false;
+		Epoch e = new Epoch(open[0], open[1], open[2], false, classifier, counters);
+		this.nextId = Math.max(this.nextId, e.id + 1);
+		this.current.set(e);
+		return e;
+	}
+
+	/**
+	 * 数え始める。受け取った Epoch は {@link #exit} まで有効で、その間に締め切られても結果の確定を待たせる
+	 *
+	 * @return 受付中の Epoch。受付中でなければ null
+	 */
+	public Epoch enter() {
+		Epoch e = this.current.get();
+		if (e == null || e.closed) {
+			return null;
+		}
+		Counters c = e.counters;
+		c.inFlight.incrementAndGet();
+		// 読んだ後に次の投票が始まっていたら、空にされた集計器へ古い票を数えないよう引き返す
+		Epoch now = this.current.get();
+		if (c.sealed || now == null || now.id != e.id) {
+			c.inFlight.decrementAndGet();
+			return null;
+		}
+		return e;
+	}
+
+	public void exit(Epoch e) {
+		e.counters.inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return 現在の Epoch。締め切った投票も次の投票を始めるまではここから読める。まだ一度も始めていなければ null
+	 */
+	public Epoch current() {
+		return this.current.get();
+	}
+}
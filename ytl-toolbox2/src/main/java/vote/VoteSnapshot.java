@@ -0,0 +1,51 @@
+package vote;
+
+/**
+ * ある時点の集計結果。生成後は変更できないので、どのスレッドに渡してもよい。
+ */
+public final class VoteSnapshot {
+
+	private final long[] single;
+	private final long[] multi;
+	private final long singleTotal;
+	private final long multiTotal;
+
+	VoteSnapshot(long[] single, long[] multi) {
+		this.single = single;
+		this.multi = multi;
+		long s = 0;
+		long m = 0;
+		for (int i = 0; i < multi.length; i++) {
+			s += single[i];
+			m += multi[i];
+		}
+		this.singleTotal = s;
+		this.multiTotal = m;
+	}
+
+	public int getOptionCount() {
+		return this.multi.length;
+	}
+
+	/**
+	 * @return 1人1票で数えた票数
+	 */
+	public long getSingle(int option) {
+		return this.single[option];
+	}
+
+	/**
+	 * @return 全メッセージを数えた票数
+	 */
+	public long getMulti(int option) {
+		return this.multi[option];
+	}
+
+	public long getSingleTotal() {
+		return this.singleTotal;
+	}
+
+	public long getMultiTotal() {
+		return this.multiTotal;
+	}
+}
@@ -0,0 +1,64 @@
+package vote;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 届いた投票をその場で数える集計器。
+ * 選択肢ごとに {@link LongAdder} を持つので、複数のスレッドから同時に数えても競合しにくい。
+ * メッセージ本体は保持しないため、何件届いてもメモリ使用量は変わらない。
+ */
+public final class VoteTally {
+
+	private final LongAdder[] single;
+	private final LongAdder[] multi;
+
+	public VoteTally(int optionCount) {
+		this.single = new LongAdder[optionCount];
+		this.multi = new LongAdder[optionCount];
+		for (int i = 0; i < optionCount; i++) {
+			this.single[i] = new LongAdder();
+			this.multi[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param option    選択肢の添字(範囲外は無視する)
+	 * @param firstVote その投稿者の最初の投票なら true。1人1票の集計に数える
+	 */
+	public void record(int option, boolean firstVote) {
+		if (option < 0 || option >= this.multi.length) {
+			return;
+		}
+		this.multi[option].increment();
+		if (firstVote) {
+			this.single[option].increment();
+		}
+	}
+
+	/**
+	 * 全選択肢を0に戻す。数えている最中に呼ぶと、その間の投票は戻した後に残ることがある
+	 */
+	public void reset() {
+		for (int i = 0; i < this.multi.length; i++) {
+			this.single[i].reset();
+			this.multi[i].reset();
+		}
+	}
+
+	public int getOptionCount() {
+		return this.multi.length;
+	}
+
+	/**
+	 * 現在の値を読み取る。数えている最中でも止めずに読めるが、選択肢間で厳密に同時点の値とは限らない
+	 */
+	public VoteSnapshot snapshot() {
+		long[] s = new long[this.single.length];
+		long[] m = new long[this.multi.length];
+		for (int i = 0; i < m.length; i++) {
+			s[i] = this.single[i].sum();
+			m[i] = this.multi[i].sum();
+		}
+		return new VoteSnapshot(s, m);
+	}
+}
@@ -0,0 +1,157 @@
+package vote;
+
+import ytltoolbox.Fingerprint;
+
+import java.util.Arrays;
+
+/**
+ * 1回の投票で既に投票した人を覚えておく集合。1人1票の集計に使う。
+ * 投稿者IDは文字列のまま持たず64bitの指紋にし、オープンアドレス法の表に入れる。
+ * 表が一杯になった後の投稿者はブルームフィルタで判定する(まれに初投票を重複と誤判定する)。
+ * <p>
+ * 各枠に世代番号を持たせ、世代が現在と違う枠は空とみなすので、{@link #reset()} は配列を消さずに O(1) で終わる。
+ * 生成後は一切メモリを確保しない。
+ */
+public final class VoterRegistry {
+
+	private final long[] keys;
+	private final int[] keyGen;
+	private final int keyMask;
+	private final int capacity;
+
+	private final long[] bloom;
+	private final int[] bloomGen;
+	private final long bloomMask;
+	private final int hashCount;
+
+	private int generation = 1;
+	private int size = 0;
+	private long approximated = 0;
+
+	/**
+	 * @param capacity  正確に覚える人数
+	 * @param bloomBits 表が一杯になった後に使うブルームフィルタのビット数(0なら使わない)
+	 * @param hashCount ブルームフィルタのハッシュ関数の数
+	 */
+	public VoterRegistry(int capacity, long bloomBits, int hashCount) {
+		if (capacity < 0 || bloomBits < 0 || (capacity == 0 && bloomBits == 0)) {
+			throw new IllegalArgumentException("capacity: " + capacity + ", bloomBits: " + bloomBits);
+		}
+		// 負荷率を 0.5 以下に保つ
+		int tableSize = capacity == 0 ? 1 : Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.keys = new long[tableSize];
+		this.keyGen = new int[tableSize];
+		this.keyMask = tableSize - 1;
+		this.capacity = capacity;
+
+		// 添字をマスクで求めるので語数は2の冪に切り上げる
+		int words = bloomBits == 0 ? 0 : (int) Long.highestOneBit((bloomBits + 63) / 64 * 2 - 1);
+		this.bloom = new long[words];
+		this.bloomGen = new int[words];
+		this.bloomMask = (long) words * 64 - 1;
+		this.hashCount = Math.max(1, hashCount);
+	}
+
+	/**
+	 * 全員を正確に覚える。capacity を超えた人は覚えられず、毎回初投票として扱う
+	 */
+	public static VoterRegistry exact(int capacity) {
+		return new VoterRegistry(capacity, 0, 1);
+	}
+
+	/**
+	 * 全員をブルームフィルタで判定する。人数が非常に多い配信向け
+	 *
+	 * @param expectedVoters 想定する投票者数
+	 * @param falsePositive  初投票を重複と誤判定する確率
+	 */
+	public static VoterRegistry approximate(int expectedVoters, double falsePositive) {
+		double bits = -expectedVoters * Math.log(falsePositive) / (Math.log(2) * Math.log(2));
+		int k = (int) Math.round(bits / expectedVoters * Math.log(2));
+		return new VoterRegistry(0, (long) Math.ceil(bits), k);
+	}
+
+	/**
+	 * @param authorId 投稿者ID
+	 * @return この投票で初めて見る投稿者なら true
+	 */
+	public boolean add(String authorId) {
+		return this.add(Fingerprint.of(authorId));
+	}
+
+	public synchronized boolean add(long fp) {
+		int i = (int) fp & this.keyMask;
+		while (this.keyGen[i] == this.generation) {
+			if (this.keys[i] == fp) {
+				return false;
+			}
+			i = (i + 1) & this.keyMask;
+		}
+		if (this.size < this.capacity) {
+			this.keys[i] = fp;
+			this.keyGen[i] = this.generation;
+			this.size++;
+			return true;
+		}
+		if (this.bloom.length == 0) {
+			return true;
+		}
+		if (this.bloomAdd(fp)) {
+			this.approximated++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 全員を忘れる。配列は消さずに世代を進めるだけなので O(1)
+	 */
+	public synchronized void reset() {
+		this.generation++;
+		if (this.generation == 0) {
+			// 一周したら古い世代番号が再び有効にならないよう消しておく
+			Arrays.fill(this.keyGen, 0);
+			Arrays.fill(this.bloomGen, 0);
+			this.generation = 1;
+		}
+		this.size = 0;
+		this.approximated = 0;
+	}
+
+	/**
+	 * @return 表で正確に覚えている人数とブルームフィルタで判定した人数の和
+	 */
+	public synchronized long size() {
+		return this.size + this.approximated;
+	}
+
+	/**
+	 * @return ブルームフィルタで判定した人数。0でなければ1人1票の集計に誤差がありうる
+	 */
+	public synchronized long getApproximated() {
+		return this.approximated;
+	}
+
+	/**
+	 * @return 立っていなかったビットがあれば(=初めて見る投稿者なら) true
+	 */
+	private boolean bloomAdd(long fp) {
+		boolean added = false;
+		long h = fp;
+		long step = Fingerprint.mix(fp) | 1;
+		for (int n = 0; n < this.hashCount; n++, h += step) {
+			long bit = h & this.bloomMask;
+			int w = (int) (bit >>> 6);
+			if (this.bloomGen[w] != this.generation) {
+				this.bloom[w] = 0;
+				this.bloomGen[w] = this.generation;
+			}
+			long b = 1L << bit;
+			if ((this.bloom[w] & b) == 0) {
+				this.bloom[w] |= b;
+				added = true;
+			}
+		}
+		return added;
+	}
+}
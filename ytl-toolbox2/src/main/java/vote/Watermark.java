@@ -0,0 +1,76 @@
+package vote;
+
+/**
+ * チャットのイベント時刻(サーバーが付けた投稿時刻)がどこまで揃ったかを推定する。
+ * <p>
+ * 届いたメッセージの投稿時刻の最大値に加え、ポーリングが完了した時刻からも進める。
+ * ローカル時計とサーバー時計のずれは「受信時刻 - 投稿時刻」の最小値で見積もり、
+ * 静かなチャットでもポーリングさえ続いていればウォーターマークが進むようにする。
+ */
+public final class Watermark {
+
+	private long maxEventTime = Long.MIN_VALUE;
+	private long lastPollTime = Long.MIN_VALUE;
+	/**
+	 * ローカル時計 - サーバー時計 (+ 配信遅延) の見積もり。サンプルが無い間は0とみなす
+	 */
+	private long offset = Long.MAX_VALUE;
+
+	/**
+	 * @param eventTime  メッセージの投稿時刻(サーバー時計)
+	 * @param receivedAt 受信時刻(ローカル時計)
+	 */
+	public synchronized void observe(long eventTime, long receivedAt) {
+		this.maxEventTime = Math.max(this.maxEventTime, eventTime);
+		this.offset = Math.min(this.offset, receivedAt - eventTime);
+	}
+
+	/**
+	 * ポーリングが1回完了したことを伝える。この時点までにサーバーに届いていたメッセージは受信済みとみなす
+	 *
+	 * @param receivedAt 完了時刻(ローカル時計)
+	 */
+	public synchronized void onPollCompleted(long receivedAt) {
+		this.lastPollTime = Math.max(this.lastPollTime, receivedAt);
+	}
+
+	/**
+	 * @return この時刻より前に投稿されたメッセージは受信済みと推定されるイベント時刻
+	 */
+	public synchronized long get() {
+		if (this.lastPollTime == Long.MIN_VALUE) {
+			return this.maxEventTime;
+		}
+		return Math.max(this.maxEventTime, this.lastPollTime - this.getOffset());
+	}
+
+	/**
+	 * @return ローカル時計をサーバー時計に直すために引く値
+	 */
+	public synchronized long getOffset() {
+		return this.offset == Long.MAX_VALUE ? 0 : this.offset;
+	}
+
+	/**
+	 * @return ローカル時刻 localTime に相当するサーバー時刻
+	 */
+	public long toEventTime(long localTime) {
+		return localTime - this.getOffset();
+	}
+
+	/**
+	 * @return サーバー時刻 eventTime に相当するローカル時刻
+	 */
+	public long toLocalTime(long eventTime) {
+		return eventTime + this.getOffset();
+	}
+
+	/**
+	 * 配信が変わったときなどに、見積もりを捨てて最初からやり直す
+	 */
+	public synchronized void reset() {
+		this.maxEventTime = Long.MIN_VALUE;
+		this.lastPollTime = Long.MIN_VALUE;
+		this.offset = Long.MAX_VALUE;
+	}
+}
@@ -7,7 +7,6 @@ import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.DataStore;
@@ -24,9 +23,9 @@ import java.util.List;
 public class Auth {
 
 	/**
-	 * Define a global instance of the HTTP transport.
+	 * Define a global instance of the HTTP transport. Connections are pooled and kept alive.
 	 */
-	public static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+	public static final HttpTransport HTTP_TRANSPORT = HttpTransports.shared(new HttpSettings());
 
 	/**
 	 * Define a global instance of the JSON factory.
@@ -0,0 +1,19 @@
+package youtube;
+
+/**
+ * リスナーグループの処理がポーリングに追いつかないときの振る舞い
+ */
+public enum BackpressurePolicy {
+	/**
+	 * 空きができるまでポーリング側を待たせる。取りこぼしは無い
+	 */
+	BLOCK,
+	/**
+	 * 未処理の古いバッチから捨てる
+	 */
+	DROP_OLDEST,
+	/**
+	 * 遅れている間は最新のバッチだけを処理する
+	 */
+	SAMPLE
+}
@@ -1,8 +1,15 @@
 package youtube;
 
-import com.google.api.services.youtube.model.LiveChatMessage;
+import java.util.Set;
 
 @SuppressWarnings("ALL")
 public interface ChatArrivedListner {
-	void handle(LiveChatMessage message);
+	void handle(ChatMessage message);
+
+	/**
+	 * @return このリスナーが参照する項目。既定では全項目
+	 */
+	default Set<ChatField> requiredFields() {
+		return ChatField.ALL;
+	}
 }
@@ -0,0 +1,48 @@
+package youtube;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 1回の取得で届いたメッセージのまとまり。生成後は変更できない。
+ */
+@Getter
+public final class ChatBatch implements Iterable<ChatMessage> {
+	private final List<ChatMessage> messages;
+	/**
+	 * 受信時刻(エポックミリ秒)
+	 */
+	private final long receivedAt;
+	/**
+	 * 受信時点でサーバーにあったメッセージを取得し終えたか。
+	 * 空のバッチでも true なら、受信時刻までに投稿されたメッセージは(サーバー側の遅延を除き)届いている
+	 */
+	private final boolean caughtUp;
+
+	public ChatBatch(List<ChatMessage> messages, long receivedAt) {
+		this(messages, receivedAt, true);
+	}
+
+	public ChatBatch(List<ChatMessage> messages, long receivedAt, boolean caughtUp) {
+		this.messages = Collections.unmodifiableList(new ArrayList<>(messages));
+		this.receivedAt = receivedAt;
+		this.caughtUp = caughtUp;
+	}
+
+	public int size() {
+		return this.messages.size();
+	}
+
+	public boolean isEmpty() {
+		return this.messages.isEmpty();
+	}
+
+	@Override
+	public Iterator<ChatMessage> iterator() {
+		return this.messages.iterator();
+	}
+}
@@ -0,0 +1,36 @@
+package youtube;
+
+import java.util.Set;
+
+/**
+ * 1ページ分のメッセージをまとめて受け取るリスナー。
+ * メッセージ単位の {@link ChatArrivedListner} より呼び出し回数が少なく、集計などの一括反映に向く。
+ */
+@SuppressWarnings("ALL")
+public interface ChatBatchListener {
+	void handle(ChatBatch batch);
+
+	/**
+	 * @return このリスナーが参照する項目。既定では全項目
+	 */
+	default Set<ChatField> requiredFields() {
+		return ChatField.ALL;
+	}
+
+	/**
+	 * 参照する項目を宣言したリスナーを作る
+	 */
+	static ChatBatchListener of(Set<ChatField> fields, ChatBatchListener listener) {
+		return new ChatBatchListener() {
+			@Override
+			public void handle(ChatBatch batch) {
+				listener.handle(batch);
+			}
+
+			@Override
+			public Set<ChatField> requiredFields() {
+				return fields;
+			}
+		};
+	}
+}
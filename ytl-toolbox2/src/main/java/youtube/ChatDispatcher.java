@@ -0,0 +1,471 @@
+package youtube;
+
+import javafx.application.Platform;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * ポーリングスレッドからリスナーへバッチを非同期に受け渡すリングバッファ。
+ * 書き込みは1スレッドのみ。リスナーグループごとに読み出し位置とスレッドを持つので、
+ * 遅いグループがあっても他のグループやポーリングは待たされない({@link BackpressurePolicy#BLOCK} を除く)。
+ * <p>
+ * ロックは使わず、位置(シーケンス)だけで受け渡す。書き込み側は {@link #cursor} を進めて公開し、
+ * {@link BackpressurePolicy#BLOCK} のグループの読み出し位置が一周分より手前なら空くまで待つ。
+ * 読み出し側は cursor が自分の位置を越えるまで待つ。待つ側は少し譲ってから眠り、相手が進めたときに起こされる。
+ * <p>
+ * FXスレッドで呼ぶグループは、グループのスレッドから {@link #FX_QUEUE_CAPACITY} 件までのキューを介してFXスレッドへ渡す。
+ * キューが一杯のときはグループの方針に従う。{@link BackpressurePolicy#BLOCK} なら空くまで読み出し位置を進めないので、
+ * FXスレッドが遅れれば書き込み側も待たされる。
+ * <p>
+ * グループのスレッドは {@link #start()} するか最初に書き込んだときに起動する。
+ */
+@SuppressWarnings("ALL")
+@Slf4j
+public class ChatDispatcher {
+
+	/**
+	 * 眠る前に譲る回数
+	 */
+	private static final int YIELD_TRIES = 100;
+	/**
+	 * FXスレッドへ渡して処理を待っているバッチ数の上限。描画パルスの間に溜まる分としては十分
+	 */
+	static final int FX_QUEUE_CAPACITY = 16;
+	/**
+	 * FXスレッドのキューの空きを待つときに、停止要求を確かめる間隔
+	 */
+	private static final long FX_OFFER_TIMEOUT_MS = 10;
+
+	private final AtomicReferenceArray<Slot> slots;
+	private final int mask;
+	/**
+	 * 最後に書き込んだ位置
+	 */
+	private volatile long cursor = -1;
+	/**
+	 * 前回調べた {@link BackpressurePolicy#BLOCK} のグループの読み出し位置の最小値。
+	 * 書き込む位置がこれより一周分先に達するまでは調べ直さない。書き込みスレッドだけが使う
+	 */
+	private long cachedGating = -1;
+	/**
+	 * 空きを待って眠っている書き込みスレッド
+	 */
+	private volatile Thread blockedPublisher;
+	private volatile boolean running = true;
+	private volatile boolean started = false;
+
+	private final Collection<Group> groups = new CopyOnWriteArrayList<>();
+	/**
+	 * いずれかのグループでリスナーが増減したときに呼ぶ
+	 */
+	private final Runnable onListenersChanged;
+	/**
+	 * FXスレッドで処理させる。通常は {@link Platform#runLater}
+	 */
+	private final Executor fxExecutor;
+
+	/**
+	 * @param bufferSize 保持するバッチ数(2の冪に切り上げる)
+	 */
+	public ChatDispatcher(int bufferSize) {
+		this(bufferSize, () -> {
+		});
+	}
+
+	/**
+	 * @param bufferSize         保持するバッチ数(2の冪に切り上げる)
+	 * @param onListenersChanged いずれかのグループでリスナーが増減したときに呼ぶ
+	 */
+	public ChatDispatcher(int bufferSize, Runnable onListenersChanged) {
+		this(bufferSize, onListenersChanged, Platform::runLater);
+	}
+
+	/**
+	 * @param fxExecutor FXスレッドで呼ぶグループのリスナーを実行する
+	 */
+	ChatDispatcher(int bufferSize, Runnable onListenersChanged, Executor fxExecutor) {
+		this.onListenersChanged = onListenersChanged;
+		this.fxExecutor = fxExecutor;
+		int size = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @param name       スレッド名に使う
+	 * @param policy     追いつかないときの振る舞い
+	 * @param onFxThread true ならリスナーをFXスレッド上で呼ぶ
+	 */
+	public Group newGroup(String name, BackpressurePolicy policy, boolean onFxThread) {
+		Group g = new Group(name, policy, onFxThread);
+		synchronized (this) {
+			this.groups.add(g);
+			if (this.started) {
+				g.thread.start();
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * グループのスレッドを起動する。2回目以降は何もしない
+	 */
+	public void start() {
+		if (this.started) {
+			return;
+		}
+		synchronized (this) {
+			if (this.started || !this.running) {
+				return;
+			}
+			this.started = true;
+			for (Group g : this.groups) {
+				g.thread.start();
+			}
+		}
+	}
+
+	/**
+	 * @return 全グループに登録されているリスナー
+	 */
+	public Collection<ChatBatchListener> getListeners() {
+		Collection<ChatBatchListener> all = new ArrayList<>();
+		for (Group g : this.groups) {
+			all.addAll(g.listeners);
+		}
+		return all;
+	}
+
+	/**
+	 * バッチを書き込む。{@link BackpressurePolicy#BLOCK} のグループが一周遅れている場合は空くまで待つ
+	 */
+	public void publish(ChatBatch batch) throws InterruptedException {
+		this.start();
+		long next = this.cursor + 1;
+		long wrapPoint = next - this.slots.length();
+		if (wrapPoint > this.cachedGating) {
+			// 後から加わったグループは今の cursor から読むので、cursor を超えて覚えておかない
+			this.cachedGating = Math.min(this.awaitGating(wrapPoint), next - 1);
+		}
+		this.slots.set((int) next & this.mask, new Slot(next, batch));
+		this.cursor = next;
+		for (Group g : this.groups) {
+			if (g.waiting) {
+				LockSupport.unpark(g.thread);
+			}
+		}
+	}
+
+	/**
+	 * {@link BackpressurePolicy#BLOCK} のグループがすべて wrapPoint まで読み終えるのを待つ。停止要求があれば待たない
+	 *
+	 * @return 読み出し位置の最小値
+	 */
+	private long awaitGating(long wrapPoint) throws InterruptedException {
+		long min;
+		int tries = YIELD_TRIES;
+		while ((min = this.minGatingSequence()) < wrapPoint && this.running) {
+			if (tries > 0) {
+				tries--;
+				Thread.yield();
+				continue;
+			}
+			// 登録してから確かめ直すので、読み出し側が進めたのに起こされない、ということは無い
+			this.blockedPublisher = Thread.currentThread();
+			if (this.minGatingSequence() < wrapPoint && this.running) {
+				LockSupport.park(this);
+			}
+			this.blockedPublisher = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * @return 動いている {@link BackpressurePolicy#BLOCK} のグループの読み出し位置の最小値。無ければ Long.MAX_VALUE
+	 */
+	private long minGatingSequence() {
+		long min = Long.MAX_VALUE;
+		for (Group g : this.groups) {
+			if (g.policy == BackpressurePolicy.BLOCK && g.alive) {
+				min = Math.min(min, g.sequence.get());
+			}
+		}
+		return min;
+	}
+
+	private void wakePublisher() {
+		Thread t = this.blockedPublisher;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * 書き込み済みのバッチを処理し終えたグループから順に停止する
+	 */
+	public void shutdown() {
+		this.running = false;
+		for (Group g : this.groups) {
+			LockSupport.unpark(g.thread);
+		}
+		this.wakePublisher();
+	}
+
+	/**
+	 * 全グループのスレッドが終わるまで待つ
+	 *
+	 * @param timeoutMs 待機時間の上限
+	 */
+	public void awaitTermination(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for (Group g : this.groups) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				break;
+			}
+			g.thread.join(left);
+		}
+	}
+
+	/**
+	 * 書き込み位置とバッチの組。上書きされたかどうかを読み出し側で判定するために位置も持たせる
+	 */
+	private static final class Slot {
+		private final long sequence;
+		private final ChatBatch batch;
+
+		private Slot(long sequence, ChatBatch batch) {
+			this.sequence = sequence;
+			this.batch = batch;
+		}
+	}
+
+	public class Group {
+		private final String name;
+		private final BackpressurePolicy policy;
+		private final boolean onFxThread;
+		private final Collection<ChatBatchListener> listeners = new CopyOnWriteArraySet<>();
+		/**
+		 * 最後に処理し終えた位置
+		 */
+		private final AtomicLong sequence = new AtomicLong(ChatDispatcher.this.cursor);
+		private final AtomicLong dropped = new AtomicLong();
+		private final Thread thread;
+		private volatile boolean alive = true;
+		/**
+		 * 書き込みを待って眠っている
+		 */
+		private volatile boolean waiting = false;
+		/**
+		 * FXスレッドへ渡したがまだ処理されていないバッチ
+		 */
+		private final BlockingQueue<ChatBatch> fxQueue = new ArrayBlockingQueue<>(FX_QUEUE_CAPACITY);
+		private final AtomicBoolean fxScheduled = new AtomicBoolean();
+
+		private Group(String name, BackpressurePolicy policy, boolean onFxThread) {
+			this.name = name;
+			this.policy = policy;
+			this.onFxThread = onFxThread;
+			this.thread = new Thread(this::run, "ChatDispatcher-" + name);
+			this.thread.setDaemon(true);
+		}
+
+		public boolean addListener(ChatBatchListener l) {
+			return this.changed(this.listeners.add(l));
+		}
+
+		public boolean removeListener(Object o) {
+			return this.changed(this.listeners.remove(o));
+		}
+
+		public boolean removeListenerIf(Predicate<? super ChatBatchListener> filter) {
+			return this.changed(this.listeners.removeIf(filter));
+		}
+
+		private boolean changed(boolean changed) {
+			if (changed) {
+				ChatDispatcher.this.onListenersChanged.run();
+			}
+			return changed;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public BackpressurePolicy getPolicy() {
+			return this.policy;
+		}
+
+		/**
+		 * @return 未処理のバッチ数。FXスレッドへ渡して処理を待っている分も含む
+		 */
+		public long getQueueDepth() {
+			return ChatDispatcher.this.cursor - this.sequence.get() + this.fxQueue.size();
+		}
+
+		/**
+		 * @return 捨てたバッチ数の累計
+		 */
+		public long getDroppedCount() {
+			return this.dropped.get();
+		}
+
+		/**
+		 * このグループだけを止める
+		 */
+		public void close() {
+			ChatDispatcher.this.groups.remove(this);
+			this.alive = false;
+			LockSupport.unpark(this.thread);
+			ChatDispatcher.this.wakePublisher();
+			ChatDispatcher.this.onListenersChanged.run();
+		}
+
+		private void run() {
+			final int size = ChatDispatcher.this.slots.length();
+			try {
+				long next = this.sequence.get() + 1;
+				while (this.alive) {
+					long available = this.awaitPublished(next);
+					if (available < next) {
+						break; // shutdown
+					}
+					if (this.policy == BackpressurePolicy.SAMPLE && available > next) {
+						this.dropped.addAndGet(available - next);
+						next = available;
+					} else if (available - next >= size) {
+						// 一周以上遅れたので上書き済みの分は読めない
+						this.dropped.addAndGet(available - size + 1 - next);
+						next = available - size + 1;
+					}
+					Slot slot = ChatDispatcher.this.slots.get((int) next & ChatDispatcher.this.mask);
+					if (slot.sequence != next) {
+						continue; // 読む前に上書きされた。位置を詰め直してやり直す
+					}
+					if (!this.deliver(slot.batch)) {
+						break; // FXスレッドの空きを待っている間に停止要求があった
+					}
+					this.sequence.set(next);
+					next++;
+					if (this.policy == BackpressurePolicy.BLOCK) {
+						ChatDispatcher.this.wakePublisher();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				this.alive = false;
+				ChatDispatcher.this.wakePublisher();
+			}
+		}
+
+		/**
+		 * @return 書き込み済みの最新位置。停止要求があり処理すべきものが無ければ next 未満を返す
+		 */
+		private long awaitPublished(long next) {
+			long available;
+			int tries = YIELD_TRIES;
+			while ((available = ChatDispatcher.this.cursor) < next && ChatDispatcher.this.running && this.alive) {
+				if (tries > 0) {
+					tries--;
+					Thread.yield();
+					continue;
+				}
+				// 登録してから確かめ直すので、書き込み側が進めたのに起こされない、ということは無い
+				this.waiting = true;
+				if (ChatDispatcher.this.cursor < next && ChatDispatcher.this.running && this.alive) {
+					LockSupport.park(this);
+				}
+				this.waiting = false;
+			}
+			return available;
+		}
+
+		/**
+		 * @return 渡し終えたら true。FXスレッドのキューの空きを待っている間に停止要求があれば false
+		 */
+		private boolean deliver(ChatBatch batch) throws InterruptedException {
+			if (this.listeners.isEmpty()) {
+				return true;
+			}
+			if (!this.onFxThread) {
+				this.invoke(batch);
+				return true;
+			}
+			// FXスレッドには渡すだけで待たない。描画パルスまでに溜まった分は1回の runLater でまとめて処理する
+			if (this.policy == BackpressurePolicy.BLOCK) {
+				// 空くまで読み出し位置を進めないので、書き込み側もリングが一周したところで待つ
+				while (!this.fxQueue.offer(batch, FX_OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					this.scheduleFx();
+					if (!this.alive || !ChatDispatcher.this.running) {
+						this.dropped.incrementAndGet();
+						return false;
+					}
+				}
+			} else {
+				while (!this.fxQueue.offer(batch)) {
+					if (this.fxQueue.poll() != null) {
+						this.dropped.incrementAndGet();
+					}
+				}
+			}
+			this.scheduleFx();
+			return true;
+		}
+
+		private void scheduleFx() {
+			if (this.fxScheduled.compareAndSet(false, true)) {
+				ChatDispatcher.this.fxExecutor.execute(this::drainFx);
+			}
+		}
+
+		private void drainFx() {
+			this.fxScheduled.set(false);
+			ChatBatch batch;
+			if (this.policy == BackpressurePolicy.SAMPLE) {
+				// 遅れている間は最新のバッチだけを処理する
+				ChatBatch latest = null;
+				while ((batch = this.fxQueue.poll()) != null) {
+					if (latest != null) {
+						this.dropped.incrementAndGet();
+					}
+					latest = batch;
+				}
+				if (latest != null) {
+					this.invoke(latest);
+				}
+				return;
+			}
+			while ((batch = this.fxQueue.poll()) != null) {
+				this.invoke(batch);
+			}
+		}
+
+		private void invoke(ChatBatch batch) {
+			for (ChatBatchListener l : this.listeners) {
+				try {
+					l.handle(batch);
+				} catch (RuntimeException e) {
+					log.error("listener failed in group " + this.name, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package youtube;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * リスナーが必要とするメッセージの項目。
+ * 登録中のリスナーが求める項目の和だけをAPIに要求し、レスポンスを小さくする。
+ * メッセージIDと投稿時刻は重複除去と集計期間の判定に使うので常に取得する。
+ */
+public enum ChatField {
+	/**
+	 * {@link ChatMessage#getAuthorId()}
+	 */
+	AUTHOR_ID("authorDetails/channelId"),
+	/**
+	 * {@link ChatMessage#isOwner()}, {@link ChatMessage#isModerator()}, {@link ChatMessage#isSponsor()}
+	 */
+	ROLES("authorDetails(isChatOwner,isChatModerator,isChatSponsor)"),
+	/**
+	 * {@link ChatMessage#getText()}
+	 */
+	TEXT("snippet/displayMessage");
+
+	public static final Set<ChatField> ALL = Collections.unmodifiableSet(EnumSet.allOf(ChatField.class));
+
+	private final String mask;
+
+	ChatField(String mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * @return setFields に渡すフィールドマスク
+	 */
+	static String fieldsOf(Set<ChatField> fields) {
+		StringBuilder sb = new StringBuilder("items(id,snippet/publishedAt");
+		for (ChatField f : fields) {
+			sb.append(',').append(f.mask);
+		}
+		return sb.append("),nextPageToken,pollingIntervalMillis").toString();
+	}
+
+	/**
+	 * @return list に渡す part
+	 */
+	static String partOf(Set<ChatField> fields) {
+		return fields.contains(AUTHOR_ID) || fields.contains(ROLES) ? "snippet,authorDetails" : "snippet";
+	}
+}
@@ -0,0 +1,60 @@
+package youtube;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import lombok.Getter;
+
+/**
+ * アプリ内で扱うチャットメッセージ。受信時に1度だけ作り、以降は変更しない。
+ * APIモデル({@code LiveChatMessage})はMapベースで重いため、必要な項目だけを平坦に持つ。
+ */
+@Getter
+public final class ChatMessage {
+
+	private static final byte FLAG_OWNER = 1;
+	private static final byte FLAG_MODERATOR = 1 << 1;
+	private static final byte FLAG_SPONSOR = 1 << 2;
+
+	/**
+	 * 投稿者IDは同じ人が何度も書き込むので共有する。使われなくなればGCで回収される
+	 */
+	private static final Interner<String> AUTHOR_IDS = Interners.newWeakInterner();
+
+	/**
+	 * メッセージIDの指紋
+	 */
+	private final long id;
+	/**
+	 * 投稿時刻(エポックミリ秒)
+	 */
+	private final long publishedAt;
+	private final String authorId;
+	private final byte flags;
+	private final String text;
+
+	public ChatMessage(long id, long publishedAt, String authorId, boolean owner, boolean moderator, boolean sponsor,
+					   String text) {
+		this.id = id;
+		this.publishedAt = publishedAt;
+		this.authorId = authorId == null ? null : AUTHOR_IDS.intern(authorId);
+		this.flags = (byte) ((owner ? FLAG_OWNER : 0) | (moderator ? FLAG_MODERATOR : 0) | (sponsor ? FLAG_SPONSOR : 0));
+		this.text = text;
+	}
+
+	public boolean isOwner() {
+		return (this.flags & FLAG_OWNER) != 0;
+	}
+
+	public boolean isModerator() {
+		return (this.flags & FLAG_MODERATOR) != 0;
+	}
+
+	public boolean isSponsor() {
+		return (this.flags & FLAG_SPONSOR) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ChatMessage(" + this.publishedAt + ", " + this.authorId + ", " + this.text + ")";
+	}
+}
@@ -0,0 +1,24 @@
+package youtube;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * liveChatMessages.list の1レスポンス分を復号した結果
+ */
+@Getter
+class ChatPage {
+	private final List<ChatMessage> messages;
+	private final String nextPageToken;
+	/**
+	 * サーバーが推奨する次回取得までの間隔(無ければ null)
+	 */
+	private final Long pollingIntervalMillis;
+
+	ChatPage(List<ChatMessage> messages, String nextPageToken, Long pollingIntervalMillis) {
+		this.messages = messages;
+		this.nextPageToken = nextPageToken;
+		this.pollingIntervalMillis = pollingIntervalMillis;
+	}
+}
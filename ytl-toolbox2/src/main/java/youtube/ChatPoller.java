@@ -1,52 +1,121 @@
 package youtube;
 
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.util.Strings;
 import com.google.api.services.youtube.YouTube;
-import com.google.api.services.youtube.model.LiveChatMessage;
-import com.google.api.services.youtube.model.LiveChatMessageListResponse;
-import javafx.animation.AnimationTimer;
+import com.google.common.io.ByteStreams;
+import javafx.application.Platform;
 import lombok.extern.slf4j.Slf4j;
+import ytltoolbox.Fingerprint;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static youtube.ChatPollerState.*;
 
 @SuppressWarnings("ALL")
 @Slf4j()
-public class ChatPoller extends AnimationTimer {
+public class ChatPoller {
 
 	private final YouTube youtube;
-	private String liveChatId;
+	private volatile String liveChatId;
 
 	/**
-	 * Common fields to retrieve for chat messages
+	 * 登録中のリスナーが必要とする項目だけを要求するフィールドマスクと part。リスナーの増減で作り直す
 	 */
-	private static final String LIVE_CHAT_FIELDS = "items(authorDetails(channelId,displayName,channelUrl,isChatModerator,isChatOwner,isChatSponsor,"
-			+ "profileImageUrl),snippet(displayMessage,superChatDetails,publishedAt)),"
-			+ "nextPageToken,pollingIntervalMillis";
-	private final String nextPageToken;
+	private volatile String liveChatFields = ChatField.fieldsOf(ChatField.ALL);
+	private volatile String liveChatPart = ChatField.partOf(ChatField.ALL);
+	/**
+	 * 1リクエストで取得する最大件数(APIの上限値)
+	 */
+	private static final long MAX_RESULTS = 2000L;
+	/**
+	 * 取りこぼし回復時に1回のポーリングで連続取得する最大ページ数
+	 */
+	private static final int MAX_CATCH_UP_PAGES = 5;
+	/**
+	 * 次回取得開始位置。再接続やエラー後もここから再開する
+	 */
+	private volatile String nextPageToken;
+	private final PollInterval interval = new PollInterval();
+	/**
+	 * 重複判定のために覚えておく直近のメッセージID数。ページの重なりや再試行による再送を弾く
+	 */
+	private static final int DEDUP_CAPACITY = 20_000;
+	private final MessageIdIndex seenIds = new MessageIdIndex(DEDUP_CAPACITY);
+	private final ChatResponseDecoder decoder = new ChatResponseDecoder(Auth.JSON_FACTORY);
 	private long delayMs;
-	private boolean isDemo;
-	private final Collection<ChatArrivedListner> arrivedListners = new CopyOnWriteArraySet<>();
+	private volatile boolean isDemo;
+	/**
+	 * デモモードのチャット源。APIの代わりにこれが生成したメッセージを流す
+	 */
+	private volatile SyntheticChat demoChat;
+	/**
+	 * デモモードでの生成間隔
+	 */
+	private static final long DEMO_INTERVAL_MS = 50;
+	/**
+	 * リスナーへの受け渡しに使うリングバッファのバッチ数
+	 */
+	private static final int DISPATCH_BUFFER_SIZE = 64;
+	private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+	private final ChatDispatcher dispatcher = new ChatDispatcher(DISPATCH_BUFFER_SIZE, this::updateFieldMask);
+	/**
+	 * {@link #addBatchListener} で登録したリスナーの所属先。取りこぼし無しで渡す
+	 */
+	private final ChatDispatcher.Group defaultGroup;
+	/**
+	 * false なら既定のリスナーと停止の通知をFXスレッドを介さずに呼ぶ
+	 */
+	private final boolean dispatchOnFxThread;
+	/**
+	 * 生レスポンスの記録先(null なら記録しない)
+	 */
+	private volatile ChatRecorder recorder;
 	private final Collection<ChatShutdownListener> shutdownListners = new CopyOnWriteArraySet<>();
 	private final Collection<ChatIdChangeListener> chatIdChangeListeners = new CopyOnWriteArraySet<>();
-	private long last = 0;
 
-	private ChatPollerState state = IDLE;
+	/**
+	 * ポーリング専用スレッド。次回ポーリング時刻まで眠り、FXスレッドをブロックしない
+	 */
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ChatPoller");
+		t.setDaemon(true);
+		return t;
+	});
+	private ScheduledFuture<?> next;
+
+	private volatile ChatPollerState state = IDLE;
 
 	public ChatPoller(YouTube youtube) {
 		this(youtube, null);
 	}
 
 	public ChatPoller(YouTube youtube, final String liveChatId) {
+		this(youtube, liveChatId, true);
+	}
+
+	/**
+	 * @param dispatchOnFxThread false なら既定のリスナーと停止の通知をFXスレッドを介さずに呼ぶ。FXを起動しない計測などで使う
+	 */
+	public ChatPoller(YouTube youtube, final String liveChatId, boolean dispatchOnFxThread) {
+		this.dispatchOnFxThread = dispatchOnFxThread;
+		this.defaultGroup = this.dispatcher.newGroup("default", BackpressurePolicy.BLOCK, dispatchOnFxThread);
 		this.youtube = youtube;
 		this.liveChatId = liveChatId;
 		this.state = IDLE;
 		this.nextPageToken = null;
-		this.delayMs = 1000;
+		this.delayMs = PollInterval.DEFAULT_MS;
 
 	}
 
@@ -56,52 +125,210 @@ public class ChatPoller extends AnimationTimer {
 	//		this.delayMs = 0;
 	//	}
 
-	@Override
-	public void handle(long now) {
+	/**
+	 * ポーリングを開始する。
+	 */
+	public synchronized void start() {
+		if (this.state != IDLE) {
+			return;
+		}
+		this.state = RUNNING;
+		this.dispatcher.start();
+		this.schedule(0);
+	}
+
+	private synchronized void schedule(long delay) {
+		if (!this.executor.isShutdown()) {
+			this.next = this.executor.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * ポーリングスレッド上で1回分のリクエストを実行し、結果をFXスレッドへ非同期に渡す。
+	 */
+	private void poll() {
 		try {
-			if (this.last == 0) {
-				this.state = RUNNING;
-				this.last = now;
+			if (this.isDemo) {
+				this.pollDemo();
+				return;
 			}
-			if (now - this.last > this.delayMs * 1000000) {
-				if (Strings.isNullOrEmpty(this.liveChatId)) {
-					this.delayMs = 100;
-					return; // continue
-				}
-				LiveChatMessageListResponse response = this.youtube
-						.liveChatMessages()
-						.list(this.liveChatId, "snippet, authorDetails")
-						.setPageToken(this.nextPageToken)
-						.setFields(LIVE_CHAT_FIELDS)
-						.execute();
-				if (response == null || response.getItems() == null) {
-					this.delayMs = 100;
-					return; // continue
+			final String chatId = this.liveChatId;
+			if (Strings.isNullOrEmpty(chatId)) {
+				this.delayMs = PollInterval.IDLE_MS;
+				return; // continue
+			}
+			int received = 0;
+			Long hint = null;
+			// 前回の続きから取得し、ページが満杯の間は追いつくまで続けて取得する
+			for (int page = 0; page < MAX_CATCH_UP_PAGES && this.state == RUNNING; page++) {
+				ChatPage response = this.fetch(chatId);
+				if (!chatId.equals(this.liveChatId)) {
+					break; // 取得中にチャットが切り替わった
 				}
-				List<LiveChatMessage> items = response.getItems();
-				for (LiveChatMessage lcm : items) {
-					for (ChatArrivedListner cal : this.arrivedListners) {
-						cal.handle(lcm);
-					}
+				if (!Strings.isNullOrEmpty(response.getNextPageToken())) {
+					this.nextPageToken = response.getNextPageToken();
 				}
-				if (this.state == ChatPollerState.SHUTDOWN) {
-					for (ChatShutdownListener csl : this.shutdownListners) {
-						csl.handle();
-					}
-					this.state = ChatPollerState.STOPPED;
-					this.stop();
+				hint = response.getPollingIntervalMillis();
+				List<ChatMessage> items = response.getMessages();
+				received += items.size();
+				boolean caughtUp = isCaughtUp(items);
+				this.ingest(items, System.currentTimeMillis(), caughtUp);
+				if (caughtUp) {
+					break;
 				}
-				this.last = now;
 			}
+			this.delayMs = this.interval.onSuccess(hint, received);
 		} catch (IOException e) {
-			e.printStackTrace();
+			this.delayMs = this.interval.onFailure(e);
+			log.error(String.format("chat polling failed (%s, retry #%d in %dms).",
+					PollInterval.isQuotaError(e) ? "quota" : "io", this.interval.getFailures(), this.delayMs), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.state = SHUTDOWN;
+		} catch (RuntimeException e) {
+			// スケジュールが途切れないよう、想定外の例外もここで止める
+			this.delayMs = this.interval.onFailure(e);
+			log.error("unexpected error while polling.", e);
+		} finally {
+			if (this.state == ChatPollerState.SHUTDOWN) {
+				this.state = ChatPollerState.STOPPED;
+				this.executor.shutdown();
+				// 受け渡し済みのバッチを各リスナーが処理し終えてから通知する
+				this.dispatcher.shutdown();
+				try {
+					this.dispatcher.awaitTermination(SHUTDOWN_TIMEOUT_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (this.dispatchOnFxThread) {
+					Platform.runLater(this::fireShutdown);
+				} else {
+					this.fireShutdown();
+				}
+			} else {
+				this.schedule(this.delayMs);
+			}
+		}
+	}
+
+	private void fireShutdown() {
+		for (ChatShutdownListener csl : this.shutdownListners) {
+			csl.handle();
 		}
 	}
 
-	public void shutdown() {
-		if (this.state != ChatPollerState.STOPPED) {
+	/**
+	 * 前回から経過した時間分の合成メッセージを、実際のポーリングと同じ経路で流す
+	 */
+	private void pollDemo() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		List<ChatMessage> items = new ArrayList<>();
+		this.demoChat.generate(now, (id, at, author, owner, moderator, sponsor, text) ->
+				items.add(new ChatMessage(Fingerprint.of(id), at, author, owner, moderator, sponsor, text)));
+		this.ingest(items, now);
+		this.delayMs = DEMO_INTERVAL_MS;
+	}
+
+	/**
+	 * レスポンス本文をストリーミングで復号する。記録中は本文を読み切って記録してから復号する
+	 */
+	private ChatPage fetch(String chatId) throws IOException {
+		HttpResponse response = this.youtube
+				.liveChatMessages()
+				.list(chatId, this.liveChatPart)
+				.setPageToken(this.nextPageToken)
+				.setMaxResults(MAX_RESULTS)
+				.setFields(this.liveChatFields)
+				.executeUnparsed();
+		try {
+			ChatRecorder rec = this.recorder;
+			if (rec == null) {
+				return this.decoder.decode(response.getContent());
+			}
+			byte[] body = ByteStreams.toByteArray(response.getContent());
+			try {
+				rec.append(System.currentTimeMillis(), body);
+			} catch (IOException e) {
+				log.error("failed to record chat response.", e);
+			}
+			return this.decoder.decode(new ByteArrayInputStream(body));
+		} finally {
+			response.disconnect();
+		}
+	}
+
+	/**
+	 * 重複を除いてリスナーへ渡す。ポーリングと {@link ChatReplay} で共通の経路
+	 *
+	 * @param receivedAt 受信時刻
+	 */
+	void ingest(List<ChatMessage> items, long receivedAt) throws InterruptedException {
+		this.ingest(items, receivedAt, true);
+	}
+
+	/**
+	 * 満杯のページの後にはまだ続きがあるので、ポーリング完了とはみなさない
+	 *
+	 * @param items 1ページ分の取得結果(重複除去前)
+	 */
+	static boolean isCaughtUp(List<ChatMessage> items) {
+		return items.size() < MAX_RESULTS;
+	}
+
+	/**
+	 * @param caughtUp この時点でサーバーにあるメッセージを取得し終えたなら true
+	 */
+	void ingest(List<ChatMessage> items, long receivedAt, boolean caughtUp) throws InterruptedException {
+		// 新着が無くても空のバッチを流し、ポーリングが完了したことをリスナーに知らせる
+		this.dispatcher.publish(new ChatBatch(this.dedup(items), receivedAt, caughtUp));
+	}
+
+	/**
+	 * @param recorder 生レスポンスの記録先。null で記録をやめる
+	 */
+	public void setRecorder(ChatRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	private void updateFieldMask() {
+		Set<ChatField> fields = EnumSet.noneOf(ChatField.class);
+		for (ChatBatchListener l : this.dispatcher.getListeners()) {
+			fields.addAll(l.requiredFields());
+		}
+		this.liveChatFields = ChatField.fieldsOf(fields);
+		this.liveChatPart = ChatField.partOf(fields);
+		log.debug("field mask changed: part={}, fields={}", this.liveChatPart, this.liveChatFields);
+	}
+
+	/**
+	 * @return 既に配信済みのメッセージを除いたリスト
+	 */
+	private List<ChatMessage> dedup(List<ChatMessage> items) {
+		List<ChatMessage> fresh = new ArrayList<>(items.size());
+		for (ChatMessage m : items) {
+			if (m.getId() == 0 || this.seenIds.add(m.getId())) {
+				fresh.add(m);
+			}
+		}
+		if (fresh.size() < items.size()) {
+			log.debug("dropped {} duplicated messages.", items.size() - fresh.size());
+		}
+		return fresh;
+	}
+
+	public synchronized void shutdown() {
+		if (this.state == IDLE) {
+			this.state = STOPPED;
+			this.executor.shutdown();
+			this.dispatcher.shutdown();
+			log.info("shut down before start.");
+		} else if (this.state == RUNNING) {
 			this.state = SHUTDOWN;
 			log.info("shutting down.");
+			// 待機中であれば次回ポーリングを前倒しして即座に停止処理へ進める
+			if (this.next != null && this.next.cancel(false)) {
+				this.schedule(0);
+			}
 		}
 	}
 
@@ -114,19 +341,55 @@ public class ChatPoller extends AnimationTimer {
 	}
 
 	public void setDemo(boolean isDemo) {
+		if (isDemo && this.demoChat == null) {
+			this.demoChat = new SyntheticChat(new SyntheticChat.Settings(), System.nanoTime());
+		}
 		this.isDemo = isDemo;
 	}
 
+	/**
+	 * デモモードにし、指定した流量・投稿者数で合成チャットを流す
+	 */
+	public void setDemo(SyntheticChat.Settings settings) {
+		this.demoChat = new SyntheticChat(settings, System.nanoTime());
+		this.isDemo = true;
+	}
+
+	/**
+	 * 独立したスレッドと読み出し位置を持つリスナーグループを作る。
+	 * 遅いリスナー(ログ出力や画像取得など)はここに登録すればポーリングや他のリスナーを待たせない。
+	 *
+	 * @param name       グループ名
+	 * @param policy     処理が追いつかないときの振る舞い
+	 * @param onFxThread true ならリスナーをFXスレッド上で呼ぶ
+	 */
+	public ChatDispatcher.Group newListenerGroup(String name, BackpressurePolicy policy, boolean onFxThread) {
+		return this.dispatcher.newGroup(name, policy, onFxThread);
+	}
+
+	public boolean addBatchListener(ChatBatchListener e) {
+		return this.defaultGroup.addListener(e);
+	}
+
+	public boolean removeBatchListener(Object o) {
+		return this.defaultGroup.removeListener(o);
+	}
+
+	public void clearBatchListener() {
+		this.defaultGroup.removeListenerIf(l -> true);
+	}
+
 	public boolean addArrivedListner(ChatArrivedListner e) {
-		return this.arrivedListners.add(e);
+		return this.defaultGroup.addListener(new ArrivedListnerAdapter(e));
 	}
 
 	public boolean removeArrivedListner(Object o) {
-		return this.arrivedListners.remove(o);
+		return o instanceof ChatArrivedListner
+				&& this.defaultGroup.removeListener(new ArrivedListnerAdapter((ChatArrivedListner) o));
 	}
 
 	public void clearArrivedListner() {
-		this.arrivedListners.clear();
+		this.defaultGroup.removeListenerIf(l -> l instanceof ArrivedListnerAdapter);
 	}
 
 	public boolean addChatShutdownListener(ChatShutdownListener e) {
@@ -154,12 +417,58 @@ public class ChatPoller extends AnimationTimer {
 	}
 
 	public void setLiveChatId(String liveChatId) {
-		if (String.valueOf(liveChatId).equals(this.liveChatId)) {
+		if (!String.valueOf(liveChatId).equals(this.liveChatId)) {
 			for (ChatIdChangeListener cicl : this.chatIdChangeListeners) {
 				cicl.handle(this.liveChatId, liveChatId);
 			}
+			// 別のチャットのカーソルは使えないので先頭から取り直す
+			this.nextPageToken = null;
 		}
 		this.liveChatId = liveChatId;
 	}
 
+	/**
+	 * @return 次回取得開始位置のページトークン。再起動後に {@link #setNextPageToken(String)} で再開できる
+	 */
+	public String getNextPageToken() {
+		return this.nextPageToken;
+	}
+
+	public void setNextPageToken(String nextPageToken) {
+		this.nextPageToken = nextPageToken;
+	}
+
+	/**
+	 * メッセージ単位のリスナーをバッチリスナーとして登録するためのアダプタ
+	 */
+	private static final class ArrivedListnerAdapter implements ChatBatchListener {
+		private final ChatArrivedListner delegate;
+
+		ArrivedListnerAdapter(ChatArrivedListner delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void handle(ChatBatch batch) {
+			for (ChatMessage m : batch) {
+				this.delegate.handle(m);
+			}
+		}
+
+		@Override
+		public Set<ChatField> requiredFields() {
+			return this.delegate.requiredFields();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ArrivedListnerAdapter && ((ArrivedListnerAdapter) o).delegate.equals(this.delegate);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.delegate.hashCode();
+		}
+	}
+
 }
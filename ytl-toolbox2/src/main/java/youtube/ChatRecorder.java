@@ -0,0 +1,96 @@
+package youtube;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * liveChatMessages.list の生レスポンスを受信時刻とともに追記する。
+ * 記録は {@link ChatReplay} で同じリスナー経路に流し直せる。
+ * <p>
+ * セグメントファイルの形式: 先頭に {@link #MAGIC}、以降は
+ * [受信時刻 long][元の長さ int][圧縮後の長さ int][deflate 圧縮した本文] の繰り返し。
+ * 1ファイルが {@code segmentBytes} を超えたら次のファイルへ切り替える。
+ */
+@SuppressWarnings("ALL")
+@Slf4j
+public class ChatRecorder implements Closeable {
+
+	static final int MAGIC = 0x59544C52; // "YTLR"
+	static final String SUFFIX = ".ytlrec";
+
+	private final Path dir;
+	private final long segmentBytes;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] buffer = new byte[64 * 1024];
+	private DataOutputStream out;
+	private long written;
+
+	/**
+	 * @param dir          セグメントファイルの出力先
+	 * @param segmentBytes 1ファイルの大きさの目安
+	 */
+	public ChatRecorder(Path dir, long segmentBytes) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.segmentBytes = segmentBytes;
+	}
+
+	public synchronized void append(long receivedAt, byte[] body) throws IOException {
+		if (this.out == null || this.written >= this.segmentBytes) {
+			this.roll();
+		}
+		this.deflater.reset();
+		this.deflater.setInput(body);
+		this.deflater.finish();
+		int len = 0;
+		while (!this.deflater.finished()) {
+			if (len == this.buffer.length) {
+				byte[] grown = new byte[this.buffer.length * 2];
+				System.arraycopy(this.buffer, 0, grown, 0, len);
+				this.buffer = grown;
+			}
+			len += this.deflater.deflate(this.buffer, len, this.buffer.length - len);
+		}
+		this.out.writeLong(receivedAt);
+		this.out.writeInt(body.length);
+		this.out.writeInt(len);
+		this.out.write(this.buffer, 0, len);
+		this.out.flush();
+		this.written += 16 + len;
+	}
+
+	private void roll() throws IOException {
+		this.closeSegment();
+		// 名前順がそのまま記録順になるよう、時刻を桁揃えしてファイル名にする
+		Path file = this.dir.resolve(String.format("chat-%015d%s", System.currentTimeMillis(), SUFFIX));
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+		// 書いた MAGIC はまだバッファにあるので、ファイルの大きさには含まれない
+		long size = Files.size(file);
+		if (size == 0) {
+			this.out.writeInt(MAGIC);
+			size = 4;
+		}
+		this.written = size;
+		log.info("recording chat to {}", file);
+	}
+
+	private void closeSegment() throws IOException {
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.closeSegment();
+		this.deflater.end();
+	}
+}
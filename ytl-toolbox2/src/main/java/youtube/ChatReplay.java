@@ -0,0 +1,127 @@
+package youtube;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ChatRecorder} の記録を読み、ポーリングと同じ経路(復号・重複除去・リスナーへの受け渡し)に流す。
+ * API を使わずに {@link VoteManager} などの処理性能を測るためのもの。
+ */
+@SuppressWarnings("ALL")
+@Slf4j
+public class ChatReplay {
+
+	private final Path source;
+	private final double speed;
+
+	/**
+	 * @param source セグメントファイル、またはそれを含むディレクトリ
+	 * @param speed  再生速度の倍率。1 で記録時と同じ間隔、0 以下なら待たずに最大速度で流す
+	 */
+	public ChatReplay(Path source, double speed) {
+		this.source = source;
+		this.speed = speed;
+	}
+
+	/**
+	 * 記録を最後まで流す。呼び出したスレッドで実行する
+	 *
+	 * @param target 流し込み先。ポーリングは開始しなくてよい
+	 * @return 流したメッセージ数
+	 */
+	public long replay(ChatPoller target) throws IOException, InterruptedException {
+		ChatResponseDecoder decoder = new ChatResponseDecoder(Auth.JSON_FACTORY);
+		Inflater inflater = new Inflater();
+		long count = 0;
+		long firstRecorded = -1;
+		long startedAt = System.currentTimeMillis();
+		try {
+			for (Path file : this.segments()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile())))) {
+					if (in.readInt() != ChatRecorder.MAGIC) {
+						log.warn("not a chat recording: {}", file);
+						continue;
+					}
+					while (true) {
+						long receivedAt;
+						try {
+							receivedAt = in.readLong();
+						} catch (EOFException e) {
+							break;
+						}
+						byte[] body = new byte[in.readInt()];
+						byte[] stored = new byte[in.readInt()];
+						in.readFully(stored);
+						inflate(inflater, stored, body);
+
+						if (firstRecorded < 0) {
+							firstRecorded = receivedAt;
+						}
+						if (this.speed > 0) {
+							long due = startedAt + (long) ((receivedAt - firstRecorded) / this.speed);
+							long wait = due - System.currentTimeMillis();
+							if (wait > 0) {
+								Thread.sleep(wait);
+							}
+						}
+						ChatPage page = decoder.decode(new ByteArrayInputStream(body));
+						target.ingest(page.getMessages(), receivedAt, ChatPoller.isCaughtUp(page.getMessages()));
+						count += page.getMessages().size();
+					}
+				} catch (EOFException e) {
+					// 書き込み途中で終わった末尾のレコードは捨てる
+					log.warn("truncated record in {}", file);
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("broken chat recording", e);
+		} finally {
+			inflater.end();
+		}
+		return count;
+	}
+
+	/**
+	 * 1レコード分を body の長さちょうどまで展開する。足りなければ壊れた記録とみなす
+	 */
+	private static void inflate(Inflater inflater, byte[] stored, byte[] body) throws DataFormatException {
+		inflater.reset();
+		inflater.setInput(stored);
+		int len = 0;
+		while (!inflater.finished()) {
+			int n = inflater.inflate(body, len, body.length - len);
+			len += n;
+			if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || len == body.length)) {
+				break;
+			}
+		}
+		if (!inflater.finished() || len != body.length) {
+			throw new DataFormatException("short record: " + len + " of " + body.length + " bytes");
+		}
+	}
+
+	private List<Path> segments() throws IOException {
+		if (!Files.isDirectory(this.source)) {
+			return Collections.singletonList(this.source);
+		}
+		try (Stream<Path> s = Files.list(this.source)) {
+			return s.filter(p -> p.getFileName().toString().endsWith(ChatRecorder.SUFFIX))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package youtube;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.util.DateTime;
+import ytltoolbox.Fingerprint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * liveChatMessages.list のレスポンスをストリーミングで読み、{@link ChatMessage} を直接組み立てる。
+ * {@code LiveChatMessageListResponse} のオブジェクトツリーを経由せず、使わない項目は読み飛ばす。
+ */
+@SuppressWarnings("ALL")
+class ChatResponseDecoder {
+
+	private final JsonFactory jsonFactory;
+
+	ChatResponseDecoder(JsonFactory jsonFactory) {
+		this.jsonFactory = jsonFactory;
+	}
+
+	ChatPage decode(InputStream in) throws IOException {
+		JsonParser p = this.jsonFactory.createJsonParser(in);
+		try {
+			List<ChatMessage> messages = new ArrayList<>();
+			String nextPageToken = null;
+			Long pollingIntervalMillis = null;
+			if (p.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("unexpected response: " + p.getCurrentToken());
+			}
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String field = p.getCurrentName();
+				JsonToken value = p.nextToken();
+				if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+					while (p.nextToken() == JsonToken.START_OBJECT) {
+						messages.add(readItem(p));
+					}
+				} else if ("nextPageToken".equals(field)) {
+					nextPageToken = p.getText();
+				} else if ("pollingIntervalMillis".equals(field)) {
+					pollingIntervalMillis = p.getLongValue();
+				} else {
+					p.skipChildren();
+				}
+			}
+			return new ChatPage(messages, nextPageToken, pollingIntervalMillis);
+		} finally {
+			p.close();
+		}
+	}
+
+	private static ChatMessage readItem(JsonParser p) throws IOException {
+		long id = 0;
+		long publishedAt = 0;
+		String authorId = null;
+		boolean owner = false;
+		boolean moderator = false;
+		boolean sponsor = false;
+		String text = null;
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String field = p.getCurrentName();
+			JsonToken value = p.nextToken();
+			if ("id".equals(field)) {
+				id = Fingerprint.of(p.getText());
+			} else if ("snippet".equals(field) && value == JsonToken.START_OBJECT) {
+				while (p.nextToken() == JsonToken.FIELD_NAME) {
+					String sf = p.getCurrentName();
+					p.nextToken();
+					if ("displayMessage".equals(sf)) {
+						text = p.getText();
+					} else if ("publishedAt".equals(sf)) {
+						publishedAt = DateTime.parseRfc3339(p.getText()).getValue();
+					} else {
+						p.skipChildren();
+					}
+				}
+			} else if ("authorDetails".equals(field) && value == JsonToken.START_OBJECT) {
+				while (p.nextToken() == JsonToken.FIELD_NAME) {
+					String af = p.getCurrentName();
+					JsonToken v = p.nextToken();
+					if ("channelId".equals(af)) {
+						authorId = p.getText();
+					} else if ("isChatOwner".equals(af)) {
+						owner = v == JsonToken.VALUE_TRUE;
+					} else if ("isChatModerator".equals(af)) {
+						moderator = v == JsonToken.VALUE_TRUE;
+					} else if ("isChatSponsor".equals(af)) {
+						sponsor = v == JsonToken.VALUE_TRUE;
+					} else {
+						p.skipChildren();
+					}
+				}
+			} else {
+				p.skipChildren();
+			}
+		}
+		return new ChatMessage(id, publishedAt, authorId, owner, moderator, sponsor, text);
+	}
+}
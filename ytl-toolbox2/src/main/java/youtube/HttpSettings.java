@@ -0,0 +1,38 @@
+package youtube;
+
+import lombok.Data;
+
+/**
+ * YouTube Data API への通信設定
+ */
+@Data
+public class HttpSettings {
+	/**
+	 * 接続を確立するまでの待ち時間(ms)
+	 */
+	private int connectTimeoutMs = 10_000;
+	/**
+	 * レスポンスを読み終えるまでの待ち時間(ms)
+	 */
+	private int readTimeoutMs = 20_000;
+	/**
+	 * プール全体と接続先ごとの最大接続数
+	 */
+	private int maxConnections = 20;
+	private int maxConnectionsPerRoute = 10;
+	/**
+	 * サーバーが指定しない場合に接続を使い回す時間(ms)。TLSハンドシェイクのやり直しを避ける
+	 */
+	private long keepAliveMs = 60_000;
+	/**
+	 * API のルートURL。null なら既定(https://www.googleapis.com/)。ローカルの代替サーバーを使うときに指定する
+	 */
+	private String rootUrl = null;
+	/**
+	 * false ならOAuth認証を行わない。認証を求めないローカルの代替サーバーに接続するときに使う
+	 */
+	private boolean authorize = true;
+
+	public HttpSettings() {
+	}
+}
@@ -0,0 +1,102 @@
+package youtube;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接続プールとKeep-Aliveを有効にした {@link HttpTransport} を作る。
+ * 接続を使い回せるよう、プールの設定が同じなら1つのトランスポートを共有する。
+ */
+@SuppressWarnings("ALL")
+@Slf4j
+public class HttpTransports {
+
+	/**
+	 * トランスポートの作成に使う設定の組。{@link HttpSettings} は変更できるので、キーには値を写して使う
+	 */
+	@Value
+	private static class PoolKey {
+		long keepAliveMs;
+		int maxConnections;
+		int maxConnectionsPerRoute;
+	}
+
+	private static final Map<PoolKey, HttpTransport> SHARED = new ConcurrentHashMap<>();
+
+	private HttpTransports() {
+	}
+
+	/**
+	 * @return settings と同じプール設定の共有トランスポート。無ければ作る。閉じるのは {@link #shutdownAll()} で行う
+	 */
+	public static HttpTransport shared(HttpSettings settings) {
+		PoolKey key = new PoolKey(settings.getKeepAliveMs(), settings.getMaxConnections(),
+				settings.getMaxConnectionsPerRoute());
+		return SHARED.computeIfAbsent(key, k -> create(settings));
+	}
+
+	/**
+	 * 共有トランスポートをすべて閉じ、接続プールを解放する。アプリ終了時に呼ぶ
+	 */
+	public static void shutdownAll() {
+		for (HttpTransport transport : SHARED.values()) {
+			try {
+				transport.shutdown();
+			} catch (IOException e) {
+				log.warn("failed to close http transport", e);
+			}
+		}
+		SHARED.clear();
+	}
+
+	/**
+	 * 共有しないトランスポートを作る。不要になったら呼び出し側で {@link HttpTransport#shutdown()} すること
+	 */
+	public static HttpTransport create(HttpSettings settings) {
+		PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+				settings.getKeepAliveMs(), TimeUnit.MILLISECONDS);
+		pool.setMaxTotal(settings.getMaxConnections());
+		pool.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+		// 長く眠っていた接続は使う前に生存確認する
+		pool.setValidateAfterInactivity(2_000);
+		HttpClientBuilder builder = HttpClientBuilder.create()
+				.useSystemProperties()
+				.setConnectionManager(pool)
+				.setKeepAliveStrategy((response, context) -> {
+					long serverValue = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+					return serverValue > 0 ? serverValue : settings.getKeepAliveMs();
+				})
+				.evictIdleConnections(settings.getKeepAliveMs(), TimeUnit.MILLISECONDS)
+				// gzip の要求と展開は google-http-client 側で行う
+				.disableContentCompression()
+				.disableRedirectHandling()
+				.disableAutomaticRetries();
+		return new ApacheHttpTransport(builder.build());
+	}
+
+	/**
+	 * タイムアウトの設定を各リクエストに適用する
+	 *
+	 * @param delegate 認証情報など、先に適用する初期化処理(null可)
+	 */
+	public static HttpRequestInitializer initializer(HttpSettings settings, HttpRequestInitializer delegate) {
+		return request -> {
+			if (delegate != null) {
+				delegate.initialize(request);
+			}
+			request.setConnectTimeout(settings.getConnectTimeoutMs());
+			request.setReadTimeout(settings.getReadTimeoutMs());
+		};
+	}
+}
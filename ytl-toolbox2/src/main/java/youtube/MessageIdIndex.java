@@ -0,0 +1,110 @@
+package youtube;
+
+import ytltoolbox.Fingerprint;
+
+import java.util.Arrays;
+
+/**
+ * 直近に受信したメッセージIDの指紋を保持する固定長の集合。
+ * オープンアドレス法のハッシュ表と挿入順のリングを持ち、容量を超えると古いものから捨てる。
+ * 生成後は一切メモリを確保しない。
+ */
+@SuppressWarnings("ALL")
+class MessageIdIndex {
+
+	private static final long EMPTY = 0L;
+
+	private final long[] table;
+	private final int mask;
+	private final long[] ring;
+	private int head = 0;
+	private int size = 0;
+
+	/**
+	 * @param capacity 保持するIDの数
+	 */
+	MessageIdIndex(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		// 負荷率を 0.5 以下に保つ
+		int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.table = new long[tableSize];
+		this.mask = tableSize - 1;
+		this.ring = new long[capacity];
+	}
+
+	/**
+	 * @param id メッセージID
+	 * @return 初めて見るIDなら true
+	 */
+	boolean add(String id) {
+		return this.add(Fingerprint.of(id));
+	}
+
+	synchronized boolean add(long fp) {
+		int i = this.indexOf(fp);
+		if (this.table[i] == fp) {
+			return false;
+		}
+		if (this.size == this.ring.length) {
+			this.remove(this.ring[this.head]);
+			this.size--;
+			// 削除で表が詰め直されるので挿入位置を探し直す
+			i = this.indexOf(fp);
+		}
+		this.table[i] = fp;
+		this.ring[this.head] = fp;
+		this.head = (this.head + 1) % this.ring.length;
+		this.size++;
+		return true;
+	}
+
+	synchronized void clear() {
+		Arrays.fill(this.table, EMPTY);
+		this.head = 0;
+		this.size = 0;
+	}
+
+	synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return fp の格納位置、無ければ挿入すべき空き位置
+	 */
+	private int indexOf(long fp) {
+		int i = (int) fp & this.mask;
+		while (this.table[i] != EMPTY && this.table[i] != fp) {
+			i = (i + 1) & this.mask;
+		}
+		return i;
+	}
+
+	/**
+	 * 線形探索の連鎖を切らないよう、後続の要素を前に詰めながら削除する
+	 */
+	private void remove(long fp) {
+		int i = this.indexOf(fp);
+		if (this.table[i] == EMPTY) {
+			return;
+		}
+		int j = i;
+		while (true) {
+			this.table[i] = EMPTY;
+			long moved;
+			int home;
+			do {
+				j = (j + 1) & this.mask;
+				moved = this.table[j];
+				if (moved == EMPTY) {
+					return;
+				}
+				home = (int) moved & this.mask;
+				// home が (i, j] の範囲にあるなら j の要素は i へ動かせない
+			} while (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+			this.table[i] = moved;
+			i = j;
+		}
+	}
+}
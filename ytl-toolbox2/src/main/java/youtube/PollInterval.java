@@ -0,0 +1,106 @@
+package youtube;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 次回ポーリングまでの待機時間を決める。
+ * サーバーが返す pollingIntervalMillis を基準に、チャットが賑やかなら短く、静かなら長くする。
+ * 失敗時はジッター付きの指数バックオフで待機する。
+ */
+@SuppressWarnings("ALL")
+class PollInterval {
+
+	/**
+	 * 待機時間の下限/上限
+	 */
+	static final long MIN_MS = 500;
+	static final long MAX_MS = 10_000;
+	/**
+	 * サーバーの推奨値が得られるまでの初期値
+	 */
+	static final long DEFAULT_MS = 1000;
+	/**
+	 * チャットIDが未設定の間の確認間隔
+	 */
+	static final long IDLE_MS = 100;
+
+	/**
+	 * 推奨値に掛ける係数の範囲。賑やかなときは推奨値の半分まで、静かなときは4倍まで
+	 */
+	private static final double MIN_FACTOR = 0.5;
+	private static final double MAX_FACTOR = 4.0;
+	/**
+	 * 1回のポーリングでこの件数以上届いたら賑やかと判断する
+	 */
+	private static final int BUSY_ITEMS = 50;
+
+	private static final long BACKOFF_BASE_MS = 1000;
+	private static final long QUOTA_BACKOFF_BASE_MS = 60_000;
+	private static final long BACKOFF_MAX_MS = 15 * 60_000;
+
+	private long serverHintMs = DEFAULT_MS;
+	private double factor = 1.0;
+	private int failures = 0;
+
+	/**
+	 * @param pollingIntervalMillis サーバーの推奨値(null可)
+	 * @param itemCount             今回届いたメッセージ数
+	 * @return 次回までの待機時間(ms)
+	 */
+	long onSuccess(Long pollingIntervalMillis, int itemCount) {
+		this.failures = 0;
+		if (pollingIntervalMillis != null && pollingIntervalMillis > 0) {
+			this.serverHintMs = pollingIntervalMillis;
+		}
+		if (itemCount >= BUSY_ITEMS) {
+			this.factor = Math.max(MIN_FACTOR, this.factor * 0.75);
+		} else if (itemCount == 0) {
+			this.factor = Math.min(MAX_FACTOR, this.factor * 1.5);
+		} else {
+			// 普通の流量なら推奨値へ戻していく
+			this.factor += (1.0 - this.factor) / 2;
+		}
+		return clamp((long) (this.serverHintMs * this.factor));
+	}
+
+	/**
+	 * @param e 発生した例外
+	 * @return 次回までの待機時間(ms)
+	 */
+	long onFailure(Exception e) {
+		this.failures++;
+		long base = isQuotaError(e) ? QUOTA_BACKOFF_BASE_MS : BACKOFF_BASE_MS;
+		long cap = Math.min(BACKOFF_MAX_MS, base << Math.min(this.failures - 1, 16));
+		// 半分は固定、残り半分をランダムにして再試行を分散させる
+		return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+	}
+
+	int getFailures() {
+		return this.failures;
+	}
+
+	static boolean isQuotaError(Exception e) {
+		if (!(e instanceof GoogleJsonResponseException)) {
+			return false;
+		}
+		GoogleJsonResponseException gjre = (GoogleJsonResponseException) e;
+		if (gjre.getStatusCode() == 429) {
+			return true;
+		}
+		GoogleJsonError details = gjre.getDetails();
+		if (gjre.getStatusCode() != 403 || details == null || details.getErrors() == null) {
+			return false;
+		}
+		return details.getErrors().stream()
+				.map(GoogleJsonError.ErrorInfo::getReason)
+				.anyMatch(r -> "quotaExceeded".equals(r) || "rateLimitExceeded".equals(r)
+						|| "dailyLimitExceeded".equals(r) || "userRateLimitExceeded".equals(r));
+	}
+
+	private static long clamp(long ms) {
+		return Math.max(MIN_MS, Math.min(MAX_MS, ms));
+	}
+}
@@ -0,0 +1,140 @@
+package youtube;
+
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 実在しない配信のチャットを生成する。負荷試験用のローカルサーバーやデモモードのチャット源として使う。
+ * 投稿者は少数の常連が多く書き込む偏った分布にし、一部のメッセージは投票(選択肢の番号)にする。
+ */
+@SuppressWarnings("ALL")
+public class SyntheticChat {
+
+	/**
+	 * 生成したメッセージの受け取り先
+	 */
+	@FunctionalInterface
+	public interface Sink {
+		void accept(String id, long publishedAt, String authorId, boolean owner, boolean moderator, boolean sponsor,
+					String text);
+	}
+
+	@Data
+	public static class Settings {
+		/**
+		 * 1秒あたりのメッセージ数
+		 */
+		private double messagesPerSecond = 20;
+		/**
+		 * 投稿者の人数
+		 */
+		private int voterCount = 1000;
+		/**
+		 * 投票メッセージの割合(0～1)
+		 */
+		private double voteRatio = 0.6;
+		/**
+		 * 投票する選択肢の数
+		 */
+		private int optionCount = 4;
+
+		public Settings() {
+		}
+	}
+
+	private static final String[] CHATTER = {
+			"wwww", "88888888", "こんばんは", "かわいい", "草", "おつ", "gg", "lol", "初見です", "!?",
+	};
+	private static final char[] ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private final Settings settings;
+	private final Random random;
+	private String[] authorIds;
+	private long sequence = 0;
+	private long last = -1;
+	private double carry = 0;
+
+	public SyntheticChat(Settings settings, long seed) {
+		this.settings = settings;
+		this.random = new Random(seed);
+		this.authorIds = new String[Math.max(1, settings.getVoterCount())];
+	}
+
+	/**
+	 * 前回の呼び出しから now までに投稿されるはずのメッセージを生成する
+	 *
+	 * @return 生成した件数
+	 */
+	public synchronized int generate(long now, Sink sink) {
+		if (this.last < 0) {
+			this.last = now;
+			return 0;
+		}
+		long elapsed = now - this.last;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		this.resizeAuthors();
+		double due = this.carry + elapsed * this.settings.getMessagesPerSecond() / 1000.0;
+		int count = (int) due;
+		this.carry = due - count;
+		for (int i = 0; i < count; i++) {
+			// 同じ区間の中で投稿時刻を均等に散らす
+			long at = this.last + (long) ((double) elapsed * (i + 1) / (count + 1));
+			int author = this.pickAuthor();
+			sink.accept(this.nextMessageId(), at, this.authorId(author),
+					author == 0, author > 0 && author < 5, author % 10 == 1, this.nextText());
+		}
+		this.last = now;
+		return count;
+	}
+
+	/**
+	 * 実行中に投稿者の人数が変わったら合わせる。投稿者IDは番号から決まるので、残る番号の分はそのまま使える
+	 */
+	private void resizeAuthors() {
+		int n = Math.max(1, this.settings.getVoterCount());
+		if (n != this.authorIds.length) {
+			this.authorIds = Arrays.copyOf(this.authorIds, n);
+		}
+	}
+
+	/**
+	 * 番号の小さい投稿者ほど選ばれやすい(一様乱数の二乗)
+	 */
+	private int pickAuthor() {
+		double r = this.random.nextDouble();
+		return (int) (r * r * this.authorIds.length);
+	}
+
+	private String authorId(int index) {
+		String id = this.authorIds[index];
+		if (id == null) {
+			// チャンネルIDと同じ "UC" + 22文字の形にする
+			char[] c = new char[24];
+			c[0] = 'U';
+			c[1] = 'C';
+			long x = index * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+			for (int i = 2; i < c.length; i++) {
+				c[i] = ID_CHARS[(int) (x & 63)];
+				x = Long.rotateRight(x, 6) * 31 + i;
+			}
+			id = new String(c);
+			this.authorIds[index] = id;
+		}
+		return id;
+	}
+
+	private String nextMessageId() {
+		return "synthetic." + Long.toString(++this.sequence, 36);
+	}
+
+	private String nextText() {
+		if (this.random.nextDouble() < this.settings.getVoteRatio()) {
+			return Integer.toString(1 + this.random.nextInt(Math.max(1, this.settings.getOptionCount())));
+		}
+		return CHATTER[this.random.nextInt(CHATTER.length)];
+	}
+}
@@ -1,68 +1,340 @@
 package youtube;
 
-import com.google.api.services.youtube.model.LiveChatMessage;
-import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import vote.RecountRules;
+import vote.VoteClassifier;
+import vote.VoteJournal;
+import vote.VoteSession;
+import vote.VoteSnapshot;
+import vote.VoterRegistry;
+import vote.Watermark;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @SuppressWarnings("ALL")
+@Slf4j
 public abstract class VoteManager {
 
-	private final ChatPoller poller;
-	final List<LiveChatMessage> messages;
-
-	@Accessors
-	private long pollerStart;
-	@Accessors
-	private long pollerEnd;
-
-	public VoteManager(ChatPoller poller) {
-		this.pollerStart = Long.MAX_VALUE;
-		this.pollerEnd = 0;
-		this.poller = poller;
-		this.messages = Collections.synchronizedList(new ArrayList<>());
-		poller.addArrivedListner(m -> {
-			long at = m.getSnippet().getPublishedAt().getValue();
-			if (this.pollerStart < at && at < this.pollerEnd) {
-				this.messages.add(m);
-			} else if (this.pollerStart < at && this.pollerEnd < at) {
-				this.pollerStart = Long.MAX_VALUE;
-				this.pollerEnd = 0;
-				this.onVoteClosed(this.messages);
-			}
-		});
-		poller.addChatIdChangeListener((o, n) -> {
-			this.messages.clear();
-		});
+	/**
+	 * 正確に覚える人数の既定値。超えた分はブルームフィルタで判定する
+	 */
+	private static final int DEFAULT_VOTER_CAPACITY = 1 << 18;
+	private static final long DEFAULT_VOTER_BLOOM_BITS = 1L << 23;
+
+	private final VoteRouter router;
+	/**
+	 * 本文から選択肢の添字を求める。投票でなければ負の値を返す
+	 */
+	private volatile VoteClassifier classifier;
+	/**
+	 * router に登録済みか
+	 */
+	private boolean started;
+	/**
+	 * 受付期間と集計器。受付期間中の票は到着時に数え、メッセージは保持しない
+	 */
+	private final VoteSession session;
+
+	/**
+	 * 受付期間の後、遅れて届く票を待つ時間の既定値
+	 */
+	public static final long DEFAULT_ALLOWED_LATENESS_MS = 3000;
+
+	private final Watermark watermark;
+	private volatile long allowedLatenessMs = DEFAULT_ALLOWED_LATENESS_MS;
+	/**
+	 * 票が届かなくても、期限が来たら締め切るためのタイマー
+	 */
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "VoteManager");
+		t.setDaemon(true);
+		return t;
+	});
+	private ScheduledFuture<?> deadline;
+
+	/**
+	 * @param optionCount 選択肢の数
+	 * @param classifier  本文から選択肢の添字(0始まり)を求める。投票でなければ負の値を返す
+	 */
+	public VoteManager(ChatPoller poller, int optionCount, VoteClassifier classifier) {
+		this(poller, optionCount, classifier, VoteManager::defaultVoters);
+	}
+
+	/**
+	 * @param journal 開始・票・締切を記録する。null なら記録しない
+	 * @see #recover()
+	 */
+	public VoteManager(ChatPoller poller, int optionCount, VoteClassifier classifier, VoteJournal journal) {
+		this(new VoteRouter(poller), optionCount, classifier, VoteManager::defaultVoters, journal);
+	}
+
+	/**
+	 * @param voters 1人1票の判定に使う集合を作る。視聴者が非常に多い場合は {@link VoterRegistry#approximate} を返す
+	 */
+	public VoteManager(ChatPoller poller, int optionCount, VoteClassifier classifier, Supplier<VoterRegistry> voters) {
+		this(new VoteRouter(poller), optionCount, classifier, voters);
+	}
+
+	/**
+	 * 同じチャットで他の投票と同時に受け付ける。メッセージは router が一致しうる投票にだけ振り分ける
+	 */
+	public VoteManager(VoteRouter router, int optionCount, VoteClassifier classifier, Supplier<VoterRegistry> voters) {
+		this(router, optionCount, classifier, voters, null);
+	}
+
+	/**
+	 * 開始・票・受付終了の変更・締切を journal に記録する。journal を閉じるのは呼び出し側
+	 *
+	 * @param journal null なら記録しない
+	 * @see #recover()
+	 */
+	public VoteManager(VoteRouter router, int optionCount, VoteClassifier classifier, Supplier<VoterRegistry> voters,
+					   VoteJournal journal) {
+		this.router = router;
+		this.classifier = classifier;
+		this.session = new VoteSession(optionCount, voters, journal);
+		this.watermark = router.getWatermark();
+		if (journal != null) {
+			journal.setOnFailure(e -> log.error("vote journal error", e));
+		}
+	}
+
+	/**
+	 * router に登録し、メッセージを受け取り始める。{@link #open} と {@link #recover} も呼ぶので、
+	 * 登録できるかを先に確かめたいときだけ呼べばよい。2回目以降は何もしない
+	 *
+	 * @throws IllegalStateException router に登録できる投票の数を超えた
+	 */
+	public synchronized void start() {
+		if (!this.started) {
+			this.router.register(this);
+			this.started = true;
+		}
+	}
+
+	/**
+	 * 記録先を替える。受付中の投票は元の記録先へ記録し続け、次に {@link #open} した投票から使う。
+	 * 失敗の通知先は変えないので、必要なら {@link VoteJournal#setOnFailure} で設定しておく
+	 *
+	 * @param journal null なら記録しない
+	 */
+	public void setJournal(VoteJournal journal) {
+		this.session.setJournal(journal);
+	}
+
+	/**
+	 * 判定器を替える。受付中でも、次に数え始めるバッチから新しい判定器と振り分けの手がかりを使う
+	 */
+	public synchronized void setClassifier(VoteClassifier classifier) {
+		this.classifier = classifier;
+		this.session.changeClassifier(classifier);
+		if (this.started) {
+			this.router.reindex();
+		}
+	}
+
+	/**
+	 * 既定の人数を超えても毎回初投票として数えないよう、あふれた分はブルームフィルタで判定する
+	 */
+	private static VoterRegistry defaultVoters() {
+		return new VoterRegistry(DEFAULT_VOTER_CAPACITY, DEFAULT_VOTER_BLOOM_BITS, 4);
+	}
+
+	/**
+	 * 前回の実行で締め切られずに終わった投票があれば、ジャーナルの票から集計を作り直して再開する。
+	 * 再開した投票は元の受付終了(変更していればその値) + 許容遅延で締め切り、{@link #onVoteClosed} を呼ぶ。
+	 * 生成直後、{@link #open} する前に1回だけ呼ぶこと
+	 *
+	 * @return 再開したら true
+	 */
+	public boolean recover() {
+		this.start();
+		VoteSession.Epoch recovered = this.session.recover(this.classifier);
+		if (recovered == null) {
+			return false;
+		}
+		log.info("resumed vote {} from the journal", recovered.getId());
+		this.scheduleDeadline(recovered);
+		return true;
+	}
+
+	VoteSession getSession() {
+		return this.session;
+	}
+
+	VoteClassifier getClassifier() {
+		return this.classifier;
+	}
+
+	/**
+	 * チャットが切り替わったら受付中の投票は打ち切る
+	 */
+	void onChatChanged() {
+		this.session.close(null);
+	}
+
+	/**
+	 * バッチを数え終えるたびに呼ばれる。受付終了 + 許容遅延までウォーターマークが進んでいれば締め切る
+	 */
+	void onWatermark(long watermark) {
+		VoteSession.Epoch now = this.session.current();
+		if (now != null && !now.isClosed() && watermark >= now.getEnd() + this.allowedLatenessMs) {
+			this.finish(now);
+		}
+	}
+
+	/**
+	 * 受付中の途中経過。数えている最中でも呼べる。締め切った後は次の投票を始めるまで結果を返す
+	 */
+	public VoteSnapshot snapshot() {
+		VoteSession.Epoch e = this.session.current();
+		return e == null ? null : e.snapshot();
+	}
+
+	/**
+	 * 現在の投票(締め切った後なら直前の投票)を、チャットを再生せずに別の規則で数え直す
+	 *
+	 * @return 規則ごとの選択肢別の票数。まだ一度も投票していなければ空の配列
+	 * @see VoteSession.Epoch#recount
+	 */
+	public long[][] recount(RecountRules... rules) {
+		VoteSession.Epoch e = this.session.current();
+		return e == null ? new long[0][] : e.recount(rules);
 	}
 
+	/**
+	 * @return 受付開始の時刻(投稿時刻と同じ基準)。まだ一度も投票していなければ 0
+	 */
+	public long getOpenedAt() {
+		VoteSession.Epoch e = this.session.current();
+		return e == null ? 0 : e.getStart();
+	}
+
+	/**
+	 * @return 受付期間の長さ(ミリ秒)。まだ一度も投票していなければ 0
+	 */
+	public long getDurationMillis() {
+		VoteSession.Epoch e = this.session.current();
+		return e == null ? 0 : e.getEnd() - e.getStart();
+	}
+
+	/**
+	 * @return 受付終了までの残り時間(ミリ秒)。受付中でないか、過ぎていれば 0
+	 */
+	public long getRemainingMillis() {
+		VoteSession.Epoch e = this.session.current();
+		if (e == null || e.isClosed()) {
+			return 0;
+		}
+		return Math.max(0, this.watermark.toLocalTime(e.getEnd()) - System.currentTimeMillis());
+	}
+
+	/**
+	 * 今から second 秒間の投票を受け付ける
+	 *
+	 * @throws IllegalStateException router に登録できる投票の数を超えた
+	 */
 	public void open(long second) {
-		this.messages.clear();
-		this.pollerStart = System.currentTimeMillis();
-		this.pollerEnd = this.pollerStart + second * 1000;
+		this.start();
+		long start = this.watermark.toEventTime(System.currentTimeMillis());
+		VoteSession.Epoch prev = this.session.current();
+		if (prev != null && !prev.isClosed()) {
+			log.warn("vote reopened before the previous one closed");
+			this.finish(prev);
+		}
+		this.scheduleDeadline(this.session.open(start, start + second * 1000, this.classifier));
 	}
 
+	/**
+	 * 受付期間を今で打ち切る。遅れて届く票を待ってから結果を確定する
+	 */
 	public void close() {
-		this.pollerEnd = System.currentTimeMillis();
+		long now = this.watermark.toEventTime(System.currentTimeMillis());
+		VoteSession.Epoch closed;
+		do {
+			// 判定器の変更やタイマーの締切と競合したら、差し替え後の状態で確かめ直す
+			VoteSession.Epoch e = this.session.current();
+			if (e == null || e.isClosed()) {
+				return;
+			}
+			closed = this.session.changeEnd(e, Math.min(e.getEnd(), now));
+		} while (closed == null);
+		this.scheduleDeadline(closed);
+	}
+
+	/**
+	 * 受付終了 + 許容遅延の時刻に、ウォーターマークが届いていなくても締め切る
+	 */
+	private synchronized void scheduleDeadline(VoteSession.Epoch e) {
+		if (this.deadline != null) {
+			this.deadline.cancel(false);
+		}
+		long delay = this.watermark.toLocalTime(e.getEnd()) + this.allowedLatenessMs - System.currentTimeMillis();
+		this.deadline = this.timer.schedule(() -> this.finish(e), Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * e の投票がまだ受付中なら締め切って結果を通知する。ポーリングとタイマーのどちらが先でも1回だけ通知する
+	 */
+	private void finish(VoteSession.Epoch e) {
+		VoteSnapshot result = this.session.close(e);
+		if (result != null) {
+			this.onVoteClosed(result);
+		}
+	}
+
+	public boolean isOpen() {
+		VoteSession.Epoch e = this.session.current();
+		return e != null && !e.isClosed();
+	}
+
+	/**
+	 * @param allowedLatenessMs 受付期間の後、遅れて届く票を待つ時間
+	 */
+	public void setAllowedLateness(long allowedLatenessMs) {
+		this.allowedLatenessMs = allowedLatenessMs;
+	}
+
+	public long getAllowedLateness() {
+		return this.allowedLatenessMs;
 	}
 
 	public void setLiveChatId(String liveChatId) {
-		this.poller.setLiveChatId(liveChatId);
+		this.router.getPoller().setLiveChatId(liveChatId);
 	}
 
 	public boolean addArrivedListner(ChatArrivedListner e) {
-		return this.poller.addArrivedListner(e);
+		return this.router.getPoller().addArrivedListner(e);
+	}
+
+	public boolean addBatchListener(ChatBatchListener e) {
+		return this.router.getPoller().addBatchListener(e);
 	}
 
 	public boolean addChatShutdownListener(ChatShutdownListener e) {
-		return this.poller.addChatShutdownListener(e);
+		return this.router.getPoller().addChatShutdownListener(e);
 	}
 
-	public abstract void onVoteClosed(List<LiveChatMessage> messages);
+	/**
+	 * 受付終了時に呼ばれる。集計は到着時に済んでいるので、結果は確定済み。
+	 * ポーリングのスレッドか締め切りタイマーのスレッドから呼ばれる
+	 */
+	public abstract void onVoteClosed(VoteSnapshot result);
+
+	/**
+	 * この投票だけをやめる。ポーリングは止めないので、同じチャットの他の投票は続く
+	 */
+	public synchronized void release() {
+		this.router.unregister(this);
+		this.timer.shutdownNow();
+	}
 
 	public void shutdown() {
-		this.poller.shutdown();
+		this.release();
+		this.router.getPoller().shutdown();
 	}
 }
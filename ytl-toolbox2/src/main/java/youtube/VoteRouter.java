@@ -0,0 +1,153 @@
+package youtube;
+
+import vote.KeywordRouteIndex;
+import vote.RouteKeys;
+import vote.VoteSession;
+import vote.Watermark;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * 1つのチャットで複数の投票を同時に受け付けるための振り分け役。
+ * ポーリングのリスナーは1つだけにし、各メッセージを一致しうる投票({@link VoteManager})にだけ渡す。
+ * 振り分けには各投票の判定器が示す手がかり(番号で始まるか、キーワードを含むか)を1つの索引にまとめて使う。
+ * <p>
+ * ウォーターマークはチャット単位のものなので、ここで1つだけ持ち、各投票で共有する。
+ */
+@SuppressWarnings("ALL")
+public class VoteRouter {
+
+	private final ChatPoller poller;
+	private final Watermark watermark = new Watermark();
+	/**
+	 * 登録中の投票と、その並びに対応する索引。登録・解除のたびに両方を作り直して一度に差し替える
+	 */
+	private static final class Routes {
+		private final List<VoteManager> managers;
+		private final KeywordRouteIndex index;
+
+		private Routes(List<VoteManager> managers) {
+			List<RouteKeys> keys = new ArrayList<>(managers.size());
+			for (VoteManager m : managers) {
+				keys.add(m.getClassifier().routeKeys());
+			}
+			this.managers = managers;
+			this.index = new KeywordRouteIndex(keys);
+		}
+	}
+
+	private volatile Routes routes = new Routes(new ArrayList<>());
+	private final ChatBatchListener listener = ChatBatchListener.of(
+			EnumSet.of(ChatField.AUTHOR_ID, ChatField.ROLES, ChatField.TEXT), this::route);
+
+	/**
+	 * ポーラーを持たない。{@link #getListener()} を任意のポーラーに登録して流し込む。
+	 * 投票ごとにポーラーを作り直す画面などで、投票の状態だけを持ち続けるために使う
+	 */
+	public VoteRouter() {
+		this.poller = null;
+	}
+
+	public VoteRouter(ChatPoller poller) {
+		this.poller = poller;
+		poller.addBatchListener(this.listener);
+		poller.addChatIdChangeListener((o, n) -> {
+			this.watermark.reset();
+			for (VoteManager m : this.routes.managers) {
+				m.onChatChanged();
+			}
+		});
+	}
+
+	private void route(ChatBatch batch) {
+		Routes routes = this.routes;
+		List<VoteManager> managers = routes.managers;
+		KeywordRouteIndex index = routes.index;
+		// このバッチは読み始めた時点の各投票に対して数える。途中で次の投票が始まっても混ざらない
+		VoteSession.Epoch[] epochs = new VoteSession.Epoch[managers.size()];
+		long active = 0;
+		for (int i = 0; i < epochs.length; i++) {
+			epochs[i] = managers.get(i).getSession().enter();
+			if (epochs[i] != null) {
+				active |= 1L << i;
+			}
+		}
+		try {
+			for (ChatMessage m : batch) {
+				this.watermark.observe(m.getPublishedAt(), batch.getReceivedAt());
+				if (active == 0 || m.getText() == null) {
+					continue;
+				}
+				long targets = index.match(m.getText()) & active;
+				while (targets != 0) {
+					int i = Long.numberOfTrailingZeros(targets);
+					targets &= targets - 1;
+					epochs[i].count(m.getPublishedAt(), m.getAuthorId(), m.isSponsor(), m.getText());
+				}
+			}
+		} finally {
+			for (int i = 0; i < epochs.length; i++) {
+				if (epochs[i] != null) {
+					managers.get(i).getSession().exit(epochs[i]);
+				}
+			}
+		}
+		// 空のバッチもポーリング完了の合図として届く
+		if (batch.isCaughtUp()) {
+			this.watermark.onPollCompleted(batch.getReceivedAt());
+		}
+		long wm = this.watermark.get();
+		for (VoteManager m : managers) {
+			m.onWatermark(wm);
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException 登録数が上限({@link KeywordRouteIndex#MAX_ROUTES})に達している
+	 */
+	synchronized void register(VoteManager manager) {
+		List<VoteManager> next = new ArrayList<>(this.routes.managers);
+		if (next.size() >= KeywordRouteIndex.MAX_ROUTES) {
+			throw new IllegalStateException("too many votes on one chat: " + next.size());
+		}
+		next.add(manager);
+		this.routes = new Routes(next);
+	}
+
+	synchronized void unregister(VoteManager manager) {
+		List<VoteManager> next = new ArrayList<>(this.routes.managers);
+		if (next.remove(manager)) {
+			this.routes = new Routes(next);
+		}
+	}
+
+	/**
+	 * 判定器が替わった投票の手がかりを索引に反映する
+	 */
+	synchronized void reindex() {
+		this.routes = new Routes(this.routes.managers);
+	}
+
+	/**
+	 * @return バッチを振り分けるリスナー。ポーラーを渡して作った場合は登録済み
+	 */
+	public ChatBatchListener getListener() {
+		return this.listener;
+	}
+
+	Watermark getWatermark() {
+		return this.watermark;
+	}
+
+	/**
+	 * @throws IllegalStateException ポーラーを持たずに作った
+	 */
+	ChatPoller getPoller() {
+		if (this.poller == null) {
+			throw new IllegalStateException("this router has no poller");
+		}
+		return this.poller;
+	}
+}
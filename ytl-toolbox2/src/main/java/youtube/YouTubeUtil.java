@@ -15,6 +15,7 @@
 package youtube;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.services.youtube.YouTube;
 import com.google.api.services.youtube.YouTubeScopes;
 import com.google.api.services.youtube.model.*;
@@ -168,16 +169,35 @@ public class YouTubeUtil {
 	 * @throws IOException IOException
 	 */
 	public static YouTube getYoutube() throws IOException {
+		return getYoutube(null);
+	}
+
+	/**
+	 * @param settings 通信設定。トランスポートはプール設定が同じ呼び出し同士で共有する
+	 * @return YouTube object
+	 * @throws IOException IOException
+	 */
+	public static YouTube getYoutube(HttpSettings settings) throws IOException {
 		YouTube youtube;
-		// This OAuth 2.0 access scope allows for read-only access to the
-		// authenticated user's account, but not other types of account access.
-		List<String> scopes = Lists.newArrayList(YouTubeScopes.YOUTUBE_READONLY);
-		// Authorize the request.
-		Credential credential = Auth.authorize(scopes, "listlivechatmessages"); //$NON-NLS-1$
+		HttpSettings s = settings == null ? new HttpSettings() : settings;
+		Credential credential = null;
+		if (s.isAuthorize()) {
+			// This OAuth 2.0 access scope allows for read-only access to the
+			// authenticated user's account, but not other types of account access.
+			List<String> scopes = Lists.newArrayList(YouTubeScopes.YOUTUBE_READONLY);
+			// Authorize the request.
+			credential = Auth.authorize(scopes, "listlivechatmessages"); //$NON-NLS-1$
+		}
 
+		HttpTransport transport = settings == null ? Auth.HTTP_TRANSPORT : HttpTransports.shared(settings);
 		// This object is used to make YouTube Data API requests.
-		youtube = new YouTube.Builder(Auth.HTTP_TRANSPORT, Auth.JSON_FACTORY, credential)
-				.setApplicationName("ytl-toolbox-client").build(); //$NON-NLS-1$
+		YouTube.Builder builder = new YouTube.Builder(transport, Auth.JSON_FACTORY,
+				HttpTransports.initializer(s, credential))
+				.setApplicationName("ytl-toolbox-client"); //$NON-NLS-1$
+		if (s.getRootUrl() != null) {
+			builder.setRootUrl(s.getRootUrl());
+		}
+		youtube = builder.build();
 		return youtube;
 	}
 }
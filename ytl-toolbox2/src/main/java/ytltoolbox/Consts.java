@@ -11,6 +11,8 @@ public class Consts {
 	public static final int VERCHECK_DAYS = 3;
 
 	public static final String CONFIG_FILE_NAME = "config.yml";
+	public static final String VOTE_JOURNAL_FILE_NAME = "vote.journal";
+	public static final String VOTE_DEMO_JOURNAL_FILE_NAME = "vote-demo.journal";
 //	public static final String BANNER_PATH = "/image/channels4_banner.jpg"; //$NON-NLS-1$
 
 	public static final String PATH_FXML_MAIN = "/fxml/MainPane.fxml";
@@ -0,0 +1,36 @@
+package ytltoolbox;
+
+/**
+ * 文字列から64bitの指紋を作る。メッセージIDや投稿者IDを文字列のまま保持せずに済ませるために使う。
+ * 0は「空」を表す値として予約しているので返さない。
+ */
+public final class Fingerprint {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Fingerprint() {
+	}
+
+	public static long of(CharSequence s) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		h = mix(h);
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * 下位ビットをハッシュ表の添字に使えるよう全ビットを撹拌する(MurmurHash3 の fmix64)
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
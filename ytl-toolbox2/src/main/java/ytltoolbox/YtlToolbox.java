@@ -14,6 +14,8 @@ import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import lombok.extern.slf4j.Slf4j;
 import org.yaml.snakeyaml.Yaml;
+import youtube.HttpTransports;
+import youtube.SyntheticChat;
 
 import java.beans.IntrospectionException;
 import java.io.*;
@@ -23,6 +25,10 @@ import java.nio.charset.StandardCharsets;
 @Slf4j
 public class YtlToolbox extends Application {
 	public static boolean IS_DEMO = false;
+	/**
+	 * デモモードで流す合成チャットの設定。起動引数 {@code -demo [1秒あたりのメッセージ数] [投稿者数]} で変更できる
+	 */
+	public static final SyntheticChat.Settings DEMO_CHAT = new SyntheticChat.Settings();
 	private static Config config = null;
 	public static ObservableList<Color> commonColors = FXCollections.observableArrayList();
 
@@ -63,6 +69,11 @@ public class YtlToolbox extends Application {
 
 	}
 
+	@Override
+	public void stop() {
+		HttpTransports.shutdownAll();
+	}
+
 	private void loadConfigFile() {
 		if (new File(Consts.CONFIG_FILE_NAME).exists()) {
 			try {
@@ -83,6 +94,21 @@ public class YtlToolbox extends Application {
 
 	public static void main(String[] args) {
 		IS_DEMO = args.length > 0 && args[0].equals(Consts.ARG_DEMO);
+		// 数値でなければ既定値のまま起動する
+		if (IS_DEMO && args.length > 1) {
+			try {
+				DEMO_CHAT.setMessagesPerSecond(Double.parseDouble(args[1]));
+			} catch (NumberFormatException e) {
+				log.warn("invalid demo message rate '{}', using {}", args[1], DEMO_CHAT.getMessagesPerSecond());
+			}
+		}
+		if (IS_DEMO && args.length > 2) {
+			try {
+				DEMO_CHAT.setVoterCount(Integer.parseInt(args[2]));
+			} catch (NumberFormatException e) {
+				log.warn("invalid demo voter count '{}', using {}", args[2], DEMO_CHAT.getVoterCount());
+			}
+		}
 
 		launch(args);
 	}
@@ -0,0 +1,125 @@
+package vote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeywordAutomatonTest {
+
+	/**
+	 * グループの添字のビットを立て、論理和でまとめる
+	 */
+	private static KeywordAutomaton bits(List<List<String>> groups) {
+		return new KeywordAutomaton(groups, group -> 1L << group, (a, b) -> a | b, 0);
+	}
+
+	@Test
+	public void findsOverlappingKeywords() {
+		KeywordAutomaton automaton = bits(Arrays.asList(
+				Collections.singletonList("he"),
+				Collections.singletonList("she"),
+				Collections.singletonList("his"),
+				Collections.singletonList("hers")));
+		assertEquals(0b1011, automaton.scan("ushers", -1));
+		assertEquals(0b0100, automaton.scan("this", -1));
+		assertEquals(0, automaton.scan("hx", -1));
+	}
+
+	/**
+	 * 長いキーワードの途中の状態でも、失敗遷移の先で終わる短いキーワードの出力がまとめられている
+	 */
+	@Test
+	public void mergesOutputsAlongFailLinks() {
+		KeywordAutomaton automaton = bits(Arrays.asList(
+				Collections.singletonList("abcd"),
+				Collections.singletonList("bc"),
+				Collections.singletonList("c")));
+		assertEquals(0b110, automaton.scan("abcx", -1));
+		assertEquals(0b111, automaton.scan("abcd", -1));
+		assertEquals(0b100, automaton.scan("ac", -1));
+	}
+
+	@Test
+	public void sameStateInSeveralGroupsMerges() {
+		KeywordAutomaton automaton = bits(Arrays.asList(
+				Arrays.asList("yes", "ok"),
+				Collections.singletonList("ok")));
+		assertEquals(0b11, automaton.scan("ok!", -1));
+		assertEquals(0b01, automaton.scan("yes", -1));
+	}
+
+	@Test
+	public void ignoresWidthAndCase() {
+		KeywordAutomaton automaton = bits(Arrays.asList(
+				Collections.singletonList("Ａb1"),
+				Collections.singletonList("xyz")));
+		assertEquals(0b01, automaton.scan("ab１", -1));
+		assertEquals(0b10, automaton.scan("ＸＹＺ", -1));
+	}
+
+	@Test
+	public void stopsAtStopValue() {
+		KeywordAutomaton automaton = new KeywordAutomaton(Arrays.asList(
+				Collections.singletonList("a"),
+				Collections.singletonList("b")), group -> group, (a, b) -> -2, -1);
+		// 2つ目に一致した時点で -2 になり、以降は走査しない
+		assertEquals(-2, automaton.scan("ab" + "a", -2));
+		assertEquals(0, automaton.scan("xa", -2));
+		assertEquals(-1, automaton.scan("xyz", -2));
+	}
+
+	@Test
+	public void skipsBlankKeywords() {
+		KeywordAutomaton automaton = bits(Arrays.asList(
+				Arrays.asList("", " ", null),
+				null,
+				Collections.singletonList(" go ")));
+		assertEquals(3, automaton.getStateCount());
+		assertEquals(0b100, automaton.scan("let's go", -1));
+	}
+
+	/**
+	 * 小さな文字種でランダムに作ったキーワードと文を、素朴な部分文字列検索の結果と比べる
+	 */
+	@Test
+	public void matchesNaiveSearch() {
+		Random random = new Random(3);
+		for (int round = 0; round < 200; round++) {
+			List<List<String>> groups = new ArrayList<>();
+			for (int g = 0, n = 1 + random.nextInt(8); g < n; g++) {
+				List<String> words = new ArrayList<>();
+				for (int w = 0, m = 1 + random.nextInt(3); w < m; w++) {
+					words.add(randomText(random, 1 + random.nextInt(4)));
+				}
+				groups.add(words);
+			}
+			KeywordAutomaton automaton = bits(groups);
+			for (int t = 0; t < 50; t++) {
+				String text = randomText(random, random.nextInt(20));
+				long expected = 0;
+				for (int g = 0; g < groups.size(); g++) {
+					for (String w : groups.get(g)) {
+						if (text.contains(w)) {
+							expected |= 1L << g;
+						}
+					}
+				}
+				assertEquals(groups + " / " + text, expected, automaton.scan(text, -1));
+			}
+		}
+	}
+
+	private static String randomText(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) ('a' + random.nextInt(3));
+		}
+		return new String(chars);
+	}
+}
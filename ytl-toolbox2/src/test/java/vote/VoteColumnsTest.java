@@ -0,0 +1,76 @@
+package vote;
+
+import org.junit.Test;
+import ytltoolbox.Fingerprint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VoteColumnsTest {
+
+	private static final RecountRules EVERY = new RecountRules();
+
+	@Test
+	public void recountsAcrossChunks() {
+		VoteColumns columns = new VoteColumns();
+		int rows = VoteColumns.CHUNK_ROWS * 2 + 10;
+		for (int n = 0; n < rows; n++) {
+			columns.append(n, Fingerprint.mix(n + 1), n % 3, false);
+		}
+		assertEquals(rows, columns.size());
+		long[] counts = columns.recount(3, EVERY)[0];
+		assertEquals(rows, counts[0] + counts[1] + counts[2]);
+		assertEquals((rows + 2) / 3, counts[0]);
+		columns.reset();
+		assertEquals(0, columns.size());
+		assertEquals(0, columns.recount(3, EVERY)[0][0]);
+	}
+
+	/**
+	 * 複数のスレッドが同時に追記しても行を失わず、並行する数え直しは書き終わった行だけを読む
+	 */
+	@Test
+	public void concurrentAppendsArePublishedInOrder() throws InterruptedException {
+		VoteColumns columns = new VoteColumns();
+		int writers = 4;
+		int perWriter = 200_000;
+		AtomicBoolean done = new AtomicBoolean();
+		List<Thread> threads = new ArrayList<>();
+		for (int w = 0; w < writers; w++) {
+			long base = (long) w << 32;
+			threads.add(new Thread(() -> {
+				for (int n = 1; n <= perWriter; n++) {
+					// 選択肢 0 は書きかけの行(初期値)でしか現れない
+					columns.append(n, Fingerprint.mix(base + n), 1, false);
+				}
+			}));
+		}
+		List<String> errors = new ArrayList<>();
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				long[] counts = columns.recount(2, EVERY)[0];
+				if (counts[0] != 0) {
+					errors.add("read an unwritten row");
+					return;
+				}
+			}
+		});
+		reader.start();
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		done.set(true);
+		reader.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(writers * perWriter, columns.size());
+		long[] counts = columns.recount(2, new RecountRules(RecountRules.Mode.FIRST, 1, Long.MAX_VALUE))[0];
+		assertEquals(writers * perWriter, counts[1]);
+	}
+}
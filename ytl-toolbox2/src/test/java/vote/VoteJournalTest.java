@@ -0,0 +1,213 @@
+package vote;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoteJournalTest {
+
+	private static final VoteClassifier DIGIT = text -> text.charAt(0) - '1';
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path file() {
+		return this.folder.getRoot().toPath().resolve("vote.journal");
+	}
+
+	private static VoteSession session(VoteJournal journal) {
+		return new VoteSession(4, () -> VoterRegistry.exact(100), journal);
+	}
+
+	private static void count(VoteSession session, long publishedAt, String author, String text) {
+		VoteSession.Epoch e = session.enter();
+		try {
+			e.count(publishedAt, author, text);
+		} finally {
+			session.exit(e);
+		}
+	}
+
+	/**
+	 * 締め切らずに落ちた投票を、次回起動時に同じ集計で再開できる
+	 */
+	@Test
+	public void recoversUnclosedVote() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			session.open(0, 10_000, DIGIT);
+			count(session, 1, "a", "1");
+			count(session, 2, "b", "2");
+			count(session, 3, "a", "2");
+			count(session, 4, "c", "x");
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			VoteSession.Epoch e = session.recover(DIGIT);
+			assertNotNull(e);
+			assertEquals(1, e.getId());
+			assertEquals(0, e.getStart());
+			assertEquals(10_000, e.getEnd());
+			VoteSnapshot snapshot = e.snapshot();
+			assertEquals(1, snapshot.getMulti(0));
+			assertEquals(2, snapshot.getMulti(1));
+			assertEquals(1, snapshot.getSingle(0));
+			assertEquals(1, snapshot.getSingle(1));
+			// 再開後の票も同じ投票に数え、番号は重ならない
+			count(session, 5, "b", "1");
+			assertEquals(2, session.current().snapshot().getMulti(0));
+			assertEquals(2, session.open(0, 1, DIGIT).getId());
+		}
+	}
+
+	/**
+	 * 受付終了を変えた後に落ちたら、変更後の受付終了で再開する
+	 */
+	@Test
+	public void recoversChangedEnd() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			VoteSession.Epoch e = session.open(0, 10_000, DIGIT);
+			assertNotNull(session.changeEnd(e, 4_000));
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession.Epoch e = session(journal).recover(DIGIT);
+			assertEquals(4_000, e.getEnd());
+		}
+	}
+
+	/**
+	 * 締め切った投票は別のファイルへ移り、ジャーナルは空になる。番号は次回起動後も続く
+	 */
+	@Test
+	public void closeMovesVoteToArchive() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			session.open(0, 10_000, DIGIT);
+			count(session, 1, "a", "1");
+			count(session, 2, "b", "3");
+			assertNotNull(session.close(null));
+			assertEquals(0, journal.size());
+			assertEquals(-1, journal.findUnclosed());
+		}
+		Path archive = this.file().resolveSibling("vote.journal.1");
+		assertTrue(Files.exists(archive));
+		try (VoteJournal journal = new VoteJournal(archive, 1000)) {
+			List<Integer> types = new ArrayList<>();
+			journal.replay((type, sessionId, time, value, sponsor) -> {
+				assertEquals(1, sessionId);
+				types.add(type);
+			});
+			assertArrayEquals(new Object[]{VoteJournal.OPEN, 0, 2, VoteJournal.CLOSE}, types.toArray());
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			assertEquals(0, journal.size());
+			VoteSession session = session(journal);
+			assertNull(session.recover(DIGIT));
+			assertEquals(2, session.open(0, 1, DIGIT).getId());
+		}
+	}
+
+	/**
+	 * 締め切らずに次の投票を始めたら、前の投票の締切を記録してから始める
+	 */
+	@Test
+	public void openClosesUnclosedVote() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			VoteSession.Epoch first = session.open(0, 10_000, DIGIT);
+			count(session, 1, "a", "1");
+			session.open(0, 20_000, DIGIT);
+			count(session, 2, "b", "2");
+			assertTrue(session.current().getId() != first.getId());
+		}
+		try (VoteJournal journal = new VoteJournal(this.file().resolveSibling("vote.journal.1"), 1000)) {
+			List<Integer> types = new ArrayList<>();
+			journal.replay((type, sessionId, time, value, sponsor) -> types.add(type));
+			assertArrayEquals(new Object[]{VoteJournal.OPEN, 0, VoteJournal.CLOSE}, types.toArray());
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession.Epoch e = session(journal).recover(DIGIT);
+			assertEquals(2, e.getId());
+			assertEquals(20_000, e.getEnd());
+			assertEquals(0, e.snapshot().getMulti(0));
+			assertEquals(1, e.snapshot().getMulti(1));
+		}
+	}
+
+	/**
+	 * 空に戻した後は、前の世代のレコードが後ろに残っていても読まない
+	 */
+	@Test
+	public void ignoresRecordsOfPreviousGeneration() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			session.open(0, 10_000, DIGIT);
+			for (int i = 0; i < 10; i++) {
+				count(session, i, "a" + i, "1");
+			}
+			session.close(null);
+			session.open(0, 10_000, DIGIT);
+			count(session, 1, "z", "2");
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			assertEquals(2, journal.size());
+			VoteSnapshot snapshot = session(journal).recover(DIGIT).snapshot();
+			assertEquals(0, snapshot.getMulti(0));
+			assertEquals(1, snapshot.getMulti(1));
+		}
+	}
+
+	/**
+	 * 書きかけで落ちたレコードは読み込み時に捨てる
+	 */
+	@Test
+	public void dropsTornRecord() throws IOException {
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			VoteSession session = session(journal);
+			session.open(0, 10_000, DIGIT);
+			count(session, 1, "a", "1");
+			count(session, 2, "b", "2");
+		}
+		// 最後の票の検査値を壊す
+		try (RandomAccessFile raf = new RandomAccessFile(this.file().toFile(), "rw")) {
+			int last = 3 * VoteJournal.RECORD_BYTES;
+			raf.seek(last + 28);
+			int check = raf.readInt();
+			raf.seek(last + 28);
+			raf.writeInt(check + 1);
+		}
+		try (VoteJournal journal = new VoteJournal(this.file(), 1000)) {
+			assertEquals(2, journal.size());
+			VoteSnapshot snapshot = session(journal).recover(DIGIT).snapshot();
+			assertEquals(1, snapshot.getMulti(0));
+			assertEquals(0, snapshot.getMulti(1));
+		}
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		Files.write(this.file(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+		try {
+			new VoteJournal(this.file(), 1000).close();
+		} catch (IOException e) {
+			assertFalse(e.getMessage().isEmpty());
+			return;
+		}
+		throw new AssertionError("opened a file that is not a journal");
+	}
+}
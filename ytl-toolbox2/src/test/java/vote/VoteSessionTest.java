@@ -0,0 +1,144 @@
+package vote;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoteSessionTest {
+
+	private static final VoteClassifier DIGIT = text -> text.charAt(0) - '1';
+
+	private static VoteSession session() {
+		return new VoteSession(4, () -> VoterRegistry.exact(1000));
+	}
+
+	private static Thread start(Runnable r) {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * 締切は数えている最中のバッチを待ち、その票まで含めて確定する。確定後は数え始められない
+	 */
+	@Test
+	public void closeWaitsForBatchInFlight() throws InterruptedException {
+		VoteSession session = session();
+		session.open(0, 1000, DIGIT);
+		VoteSession.Epoch e = session.enter();
+		e.count(1, "a", "1");
+
+		AtomicReference<VoteSnapshot> closed = new AtomicReference<>();
+		Thread closer = start(() -> closed.set(session.close(null)));
+		// 新たに数え始めることはできないが、受け取り済みの Epoch には数えられる
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!session.current().isClosed() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertNull(session.enter());
+		Thread.sleep(50);
+		assertTrue(closer.isAlive());
+		e.count(2, "b", "2");
+		session.exit(e);
+
+		closer.join(5000);
+		VoteSnapshot result = closed.get();
+		assertNotNull(result);
+		assertEquals(1, result.getMulti(0));
+		assertEquals(1, result.getMulti(1));
+		assertNull(session.close(null));
+	}
+
+	/**
+	 * 締め切らずに次の投票を始めると、前の投票を締め切って数え途中のバッチを待ってから始める。
+	 * 前の投票の Epoch で数えた票は新しい投票に混ざらない
+	 */
+	@Test
+	public void openSealsPreviousVoteBeforeStarting() throws InterruptedException {
+		VoteSession session = session();
+		VoteSession.Epoch first = session.open(0, 1000, DIGIT);
+		VoteSession.Epoch e = session.enter();
+
+		AtomicReference<VoteSession.Epoch> opened = new AtomicReference<>();
+		Thread opener = start(() -> opened.set(session.open(0, 1000, DIGIT)));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!session.current().isClosed() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(first.getId(), session.current().getId());
+		assertNull(session.enter());
+		e.count(1, "a", "1");
+		Thread.sleep(50);
+		assertTrue(opener.isAlive());
+		session.exit(e);
+		opener.join(5000);
+
+		VoteSession.Epoch second = session.enter();
+		assertNotNull(second);
+		assertEquals(opened.get().getId(), second.getId());
+		second.count(1, "x", "3");
+		session.exit(second);
+		VoteSnapshot snapshot = session.current().snapshot();
+		assertEquals(0, snapshot.getMulti(0));
+		assertEquals(1, snapshot.getMulti(2));
+		assertEquals(1, e.snapshot().getMulti(0));
+		assertEquals(0, e.snapshot().getMulti(2));
+	}
+
+	/**
+	 * 多数のスレッドが数えている最中に締め切っても、確定した結果は締切までに数え終えた票と一致し、後から増えない
+	 */
+	@Test
+	public void concurrentCountsAcrossClose() throws InterruptedException {
+		for (int round = 0; round < 20; round++) {
+			VoteSession session = session();
+			session.open(0, Long.MAX_VALUE, DIGIT);
+			AtomicLong counted = new AtomicLong();
+			AtomicBoolean stop = new AtomicBoolean();
+			CountDownLatch started = new CountDownLatch(4);
+			List<Thread> threads = new ArrayList<>();
+			for (int w = 0; w < 4; w++) {
+				int writer = w;
+				threads.add(start(() -> {
+					started.countDown();
+					for (int n = 0; !stop.get(); n++) {
+						VoteSession.Epoch e = session.enter();
+						if (e == null) {
+							continue;
+						}
+						try {
+							for (int k = 0; k < 10; k++) {
+								e.count(n, writer + "-" + n, "1");
+								counted.incrementAndGet();
+							}
+						} finally {
+							session.exit(e);
+						}
+					}
+				}));
+			}
+			started.await();
+			Thread.sleep(2);
+			VoteSnapshot result = session.close(null);
+			long atClose = counted.get();
+			stop.set(true);
+			for (Thread t : threads) {
+				t.join(5000);
+			}
+			assertEquals(atClose, result.getMulti(0));
+			assertEquals(atClose, counted.get());
+			assertEquals(atClose, session.current().snapshot().getMulti(0));
+		}
+	}
+}
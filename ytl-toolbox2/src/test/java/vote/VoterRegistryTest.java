@@ -0,0 +1,86 @@
+package vote;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoterRegistryTest {
+
+	@Test
+	public void exactMatchesHashSet() {
+		VoterRegistry voters = VoterRegistry.exact(1000);
+		Set<Long> seen = new HashSet<>();
+		Random random = new Random(1);
+		for (int n = 0; n < 20_000; n++) {
+			// 下位ビットが同じ値を多く混ぜて連鎖を長くする
+			long fp = ((long) random.nextInt(1000) << 20) | 7;
+			assertEquals("step " + n, seen.add(fp), voters.add(fp));
+		}
+		assertEquals(seen.size(), voters.size());
+		assertEquals(0, voters.getApproximated());
+	}
+
+	/**
+	 * 世代を進めるだけで、前の投票の投稿者は初投票に戻る
+	 */
+	@Test
+	public void resetForgetsPreviousGeneration() {
+		VoterRegistry voters = new VoterRegistry(4, 1024, 3);
+		for (long fp = 1; fp <= 10; fp++) {
+			assertTrue(voters.add(fp));
+		}
+		assertFalse(voters.add(3));
+		assertFalse(voters.add(9));
+		voters.reset();
+		assertEquals(0, voters.size());
+		assertEquals(0, voters.getApproximated());
+		for (long fp = 1; fp <= 10; fp++) {
+			assertTrue("after reset " + fp, voters.add(fp));
+		}
+		assertEquals(10, voters.size());
+	}
+
+	@Test
+	public void overflowGoesToBloomFilter() {
+		VoterRegistry voters = new VoterRegistry(2, 1 << 16, 3);
+		assertTrue(voters.add(1));
+		assertTrue(voters.add(2));
+		assertTrue(voters.add(3));
+		assertFalse(voters.add(1));
+		assertFalse(voters.add(3));
+		assertEquals(3, voters.size());
+		assertEquals(1, voters.getApproximated());
+	}
+
+	@Test
+	public void exactWithoutBloomCountsOverflowEveryTime() {
+		VoterRegistry voters = VoterRegistry.exact(1);
+		assertTrue(voters.add(1));
+		assertTrue(voters.add(2));
+		assertTrue(voters.add(2));
+		assertFalse(voters.add(1));
+	}
+
+	/**
+	 * 誤判定の率が指定した確率から大きく外れないこと
+	 */
+	@Test
+	public void approximateKeepsFalsePositiveRate() {
+		int voters = 20_000;
+		VoterRegistry registry = VoterRegistry.approximate(voters, 0.01);
+		Random random = new Random(2);
+		int rejected = 0;
+		for (int n = 0; n < voters; n++) {
+			if (!registry.add(random.nextLong() | 1)) {
+				rejected++;
+			}
+		}
+		assertTrue("false positives: " + rejected, rejected < voters * 0.01 * 2);
+	}
+}
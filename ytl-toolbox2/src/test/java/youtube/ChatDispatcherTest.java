@@ -0,0 +1,293 @@
+package youtube;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatDispatcherTest {
+
+	private static final int RING = 8;
+	private static final int BATCHES = 200;
+
+	/**
+	 * FXスレッドの代わり。{@link #runAll()} を呼ぶまで渡された処理を実行しない
+	 */
+	private static final class StalledFx implements Executor {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		@Override
+		public void execute(Runnable command) {
+			this.tasks.add(command);
+		}
+
+		void runAll() {
+			Runnable r;
+			while ((r = this.tasks.poll()) != null) {
+				r.run();
+			}
+		}
+	}
+
+	/**
+	 * 受け取ったバッチの受信時刻(=書き込んだ順番)を記録する
+	 */
+	private static final class Recorder implements ChatBatchListener {
+		private final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void handle(ChatBatch batch) {
+			this.received.add(batch.getReceivedAt());
+		}
+
+		List<Long> received() {
+			synchronized (this.received) {
+				return new ArrayList<>(this.received);
+			}
+		}
+	}
+
+	private static ChatBatch batch(long n) {
+		return new ChatBatch(Collections.emptyList(), n);
+	}
+
+	private static Thread publisher(ChatDispatcher dispatcher, AtomicInteger published) {
+		Thread t = new Thread(() -> {
+			try {
+				for (int n = 0; n < BATCHES; n++) {
+					dispatcher.publish(batch(n));
+					published.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	private static void awaitTrue(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("timed out: " + what);
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	private static void assertInOrder(List<Long> received) {
+		for (int i = 0; i < received.size(); i++) {
+			assertEquals(i, received.get(i).longValue());
+		}
+	}
+
+	/**
+	 * FXスレッドが止まっていれば、BLOCK のグループはリングとFXのキューが埋まったところで書き込み側を待たせる
+	 */
+	@Test
+	public void fxBlockGroupPacesPublisherWhileFxIsStalled() throws InterruptedException {
+		StalledFx fx = new StalledFx();
+		ChatDispatcher dispatcher = new ChatDispatcher(RING, () -> {
+		}, fx);
+		Recorder recorder = new Recorder();
+		ChatDispatcher.Group group = dispatcher.newGroup("fx", BackpressurePolicy.BLOCK, true);
+		group.addListener(recorder);
+
+		AtomicInteger published = new AtomicInteger();
+		Thread producer = publisher(dispatcher, published);
+		// FXのキューが埋まるとグループの読み出し位置が止まり、書き込み側はさらにリング1周分で止まる
+		int limit = ChatDispatcher.FX_QUEUE_CAPACITY + RING;
+		awaitTrue("queue fills", () -> published.get() >= limit);
+		Thread.sleep(200);
+		assertEquals(limit, published.get());
+		assertTrue(producer.isAlive());
+		assertEquals(limit, group.getQueueDepth());
+
+		awaitTrue("all delivered", () -> {
+			fx.runAll();
+			return recorder.received().size() == BATCHES;
+		});
+		producer.join(10_000);
+		assertFalse(producer.isAlive());
+		assertInOrder(recorder.received());
+		assertEquals(0, group.getDroppedCount());
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(1000);
+	}
+
+	/**
+	 * FXスレッドが止まっていても、DROP_OLDEST のグループは書き込み側を待たせず古いバッチを捨てる
+	 */
+	@Test
+	public void fxDropOldestGroupDropsWhileFxIsStalled() throws InterruptedException {
+		StalledFx fx = new StalledFx();
+		ChatDispatcher dispatcher = new ChatDispatcher(RING, () -> {
+		}, fx);
+		Recorder recorder = new Recorder();
+		ChatDispatcher.Group group = dispatcher.newGroup("fx", BackpressurePolicy.DROP_OLDEST, true);
+		group.addListener(recorder);
+
+		for (int n = 0; n < BATCHES; n++) {
+			dispatcher.publish(batch(n));
+		}
+		// 書き込み済みの分を処理し終えたらグループのスレッドは止まる
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(5000);
+		// リングで追い越された分も、FXのキューから押し出された分も捨てた数に入る
+		long queued = group.getQueueDepth();
+		assertTrue(queued <= ChatDispatcher.FX_QUEUE_CAPACITY);
+		fx.runAll();
+
+		List<Long> received = recorder.received();
+		assertEquals(queued, received.size());
+		assertEquals(BATCHES - 1, received.get(received.size() - 1).longValue());
+		assertEquals(BATCHES, received.size() + group.getDroppedCount());
+		assertEquals(0, group.getQueueDepth());
+	}
+
+	/**
+	 * SAMPLE のグループは、溜まっている間は最新のバッチだけを処理する
+	 */
+	@Test
+	public void fxSampleGroupKeepsOnlyLatest() throws InterruptedException {
+		StalledFx fx = new StalledFx();
+		ChatDispatcher dispatcher = new ChatDispatcher(RING, () -> {
+		}, fx);
+		Recorder recorder = new Recorder();
+		ChatDispatcher.Group group = dispatcher.newGroup("fx", BackpressurePolicy.SAMPLE, true);
+		group.addListener(recorder);
+
+		for (int n = 0; n < BATCHES; n++) {
+			dispatcher.publish(batch(n));
+		}
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(5000);
+		fx.runAll();
+
+		List<Long> received = recorder.received();
+		assertEquals(1, received.size());
+		assertEquals(BATCHES - 1, received.get(0).longValue());
+		assertEquals(BATCHES - 1, group.getDroppedCount());
+	}
+
+	/**
+	 * FXスレッドを使わない BLOCK のグループは、遅いリスナーに合わせて書き込み側を待たせ、取りこぼさない
+	 */
+	@Test
+	public void blockGroupPacesPublisherBehindSlowListener() throws InterruptedException {
+		ChatDispatcher dispatcher = new ChatDispatcher(RING);
+		CountDownLatch release = new CountDownLatch(1);
+		Recorder recorder = new Recorder();
+		ChatDispatcher.Group group = dispatcher.newGroup("slow", BackpressurePolicy.BLOCK, false);
+		group.addListener(batch -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			recorder.handle(batch);
+		});
+
+		AtomicInteger published = new AtomicInteger();
+		Thread producer = publisher(dispatcher, published);
+		// リスナーが処理を終えるまで読み出し位置が進まないので、リング1周分で止まる
+		awaitTrue("ring fills", () -> published.get() >= RING);
+		Thread.sleep(200);
+		assertEquals(RING, published.get());
+		assertTrue(producer.isAlive());
+
+		release.countDown();
+		producer.join(10_000);
+		awaitTrue("all delivered", () -> recorder.received().size() == BATCHES);
+		assertInOrder(recorder.received());
+		assertEquals(0, group.getDroppedCount());
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(1000);
+	}
+
+	/**
+	 * DROP_OLDEST のグループが遅れても書き込み側は待たず、BLOCK のグループは全件受け取る
+	 */
+	@Test
+	public void slowDropOldestGroupDoesNotHoldBackOthers() throws InterruptedException {
+		ChatDispatcher dispatcher = new ChatDispatcher(RING);
+		CountDownLatch release = new CountDownLatch(1);
+		Recorder fast = new Recorder();
+		Recorder slow = new Recorder();
+		dispatcher.newGroup("fast", BackpressurePolicy.BLOCK, false).addListener(fast);
+		ChatDispatcher.Group lagging = dispatcher.newGroup("slow", BackpressurePolicy.DROP_OLDEST, false);
+		lagging.addListener(batch -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			slow.handle(batch);
+		});
+
+		for (int n = 0; n < BATCHES; n++) {
+			dispatcher.publish(batch(n));
+		}
+		awaitTrue("fast group done", () -> fast.received().size() == BATCHES);
+		release.countDown();
+		awaitTrue("slow group done", () -> slow.received().size() + lagging.getDroppedCount() == BATCHES);
+		assertInOrder(fast.received());
+		assertTrue(lagging.getDroppedCount() > 0);
+		assertEquals(BATCHES - 1, slow.received().get(slow.received().size() - 1).longValue());
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(1000);
+	}
+
+	/**
+	 * リスナーのいないグループはFXスレッドへ何も渡さない
+	 */
+	@Test
+	public void emptyGroupSchedulesNothing() throws InterruptedException {
+		StalledFx fx = new StalledFx();
+		ChatDispatcher dispatcher = new ChatDispatcher(RING, () -> {
+		}, fx);
+		ChatDispatcher.Group group = dispatcher.newGroup("empty", BackpressurePolicy.BLOCK, true);
+		for (int n = 0; n < BATCHES; n++) {
+			dispatcher.publish(batch(n));
+		}
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(5000);
+		assertEquals(0, group.getQueueDepth());
+		assertTrue(fx.tasks.isEmpty());
+	}
+
+	/**
+	 * FXスレッドが止まったままでも、停止要求で書き込み側もグループのスレッドも抜ける
+	 */
+	@Test
+	public void shutdownReleasesStalledGroup() throws InterruptedException {
+		StalledFx fx = new StalledFx();
+		ChatDispatcher dispatcher = new ChatDispatcher(RING, () -> {
+		}, fx);
+		dispatcher.newGroup("stalled", BackpressurePolicy.BLOCK, true).addListener(new Recorder());
+		AtomicInteger published = new AtomicInteger();
+		Thread producer = publisher(dispatcher, published);
+		awaitTrue("queue fills", () -> published.get() >= ChatDispatcher.FX_QUEUE_CAPACITY + RING);
+
+		dispatcher.shutdown();
+		dispatcher.awaitTermination(5000);
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			assertFalse(t.getName(), t.getName().equals("ChatDispatcher-stalled") && t.isAlive());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package youtube;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIdIndexTest {
+
+	@Test
+	public void rejectsDuplicates() {
+		MessageIdIndex index = new MessageIdIndex(4);
+		assertTrue(index.add("a"));
+		assertFalse(index.add("a"));
+		assertTrue(index.add("b"));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void evictsOldestWhenFull() {
+		MessageIdIndex index = new MessageIdIndex(3);
+		index.add(1);
+		index.add(2);
+		index.add(3);
+		assertTrue(index.add(4));
+		assertEquals(3, index.size());
+		// 1 は捨てられたので再び新規、3 は残っている
+		assertTrue(index.add(1));
+		assertFalse(index.add(3));
+	}
+
+	/**
+	 * 下位ビットが同じ指紋ばかりを入れて長い連鎖を作り、途中の要素を捨てても後続が見つかることを確かめる
+	 */
+	@Test
+	public void backwardShiftKeepsCollidingChains() {
+		MessageIdIndex index = new MessageIdIndex(8);
+		for (long k = 1; k <= 8; k++) {
+			assertTrue(index.add(k << 32));
+		}
+		// 先頭(連鎖の根元)から順に捨てられる
+		for (long k = 9; k <= 12; k++) {
+			assertTrue(index.add(k << 32));
+		}
+		for (long k = 5; k <= 12; k++) {
+			assertFalse("lost " + k, index.add(k << 32));
+		}
+	}
+
+	/**
+	 * 小さな表で衝突と折り返しを多発させ、挿入順で捨てる集合と一致するか比べる
+	 */
+	@Test
+	public void matchesReferenceUnderChurn() {
+		int capacity = 37;
+		MessageIdIndex index = new MessageIdIndex(capacity);
+		ArrayDeque<Long> order = new ArrayDeque<>();
+		Set<Long> live = new HashSet<>();
+		Random random = new Random(1);
+		for (int n = 0; n < 200_000; n++) {
+			// 値の種類を絞って重複も起こす。0 は空を表すので使わない
+			long fp = ((long) random.nextInt(200) << 40) | random.nextInt(128) | 1;
+			boolean expected = !live.contains(fp);
+			if (expected) {
+				if (order.size() == capacity) {
+					live.remove(order.removeFirst());
+				}
+				order.addLast(fp);
+				live.add(fp);
+			}
+			assertEquals("step " + n, expected, index.add(fp));
+		}
+		assertEquals(live.size(), index.size());
+	}
+
+	@Test
+	public void clearForgetsEverything() {
+		MessageIdIndex index = new MessageIdIndex(4);
+		index.add("a");
+		index.clear();
+		assertEquals(0, index.size());
+		assertTrue(index.add("a"));
+	}
+}
@@ -0,0 +1,146 @@
+package youtube;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import vote.KeywordRouteIndex;
+import vote.KeywordVoteClassifier;
+import vote.VoteClassifier;
+import vote.VoteJournal;
+import vote.VoteSession;
+import vote.VoteSnapshot;
+import vote.VoterRegistry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoteRouterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static class Manager extends VoteManager {
+		Manager(VoteRouter router, VoteClassifier classifier) {
+			super(router, 2, classifier, () -> VoterRegistry.exact(100));
+		}
+
+		Manager(VoteRouter router, VoteClassifier classifier, VoteJournal journal) {
+			super(router, 2, classifier, () -> VoterRegistry.exact(100), journal);
+		}
+
+		@Override
+		public void onVoteClosed(VoteSnapshot result) {
+		}
+	}
+
+	private static KeywordVoteClassifier keywords(String first, String second) {
+		return new KeywordVoteClassifier(Arrays.asList(
+				Collections.singletonList(first), Collections.singletonList(second)));
+	}
+
+	private static void send(VoteRouter router, String author, String text) {
+		long now = System.currentTimeMillis();
+		router.getListener().handle(new ChatBatch(Collections.singletonList(
+				new ChatMessage(now, now, author, false, false, false, text)), now));
+	}
+
+	/**
+	 * 作っただけでは登録しないので、上限を超えて作れる。登録は受け付け始めるときに行う
+	 */
+	@Test
+	public void registersOnStartNotConstruction() {
+		VoteRouter router = new VoteRouter();
+		List<Manager> managers = new ArrayList<>();
+		for (int i = 0; i <= KeywordRouteIndex.MAX_ROUTES; i++) {
+			managers.add(new Manager(router, keywords("a", "b")));
+		}
+		for (int i = 0; i < KeywordRouteIndex.MAX_ROUTES; i++) {
+			managers.get(i).start();
+		}
+		try {
+			managers.get(KeywordRouteIndex.MAX_ROUTES).start();
+			throw new AssertionError("registered more votes than the index can route");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// 1つやめれば登録できる
+		managers.get(0).release();
+		managers.get(KeywordRouteIndex.MAX_ROUTES).start();
+		for (Manager m : managers) {
+			m.release();
+		}
+	}
+
+	/**
+	 * 判定器を替えたら、振り分けの索引も新しいキーワードで作り直す
+	 */
+	@Test
+	public void reindexesWhenClassifierChanges() {
+		VoteRouter router = new VoteRouter();
+		Manager manager = new Manager(router, keywords("apple", "banana"));
+		manager.open(60);
+		send(router, "a", "apple!");
+		assertEquals(1, manager.snapshot().getMulti(0));
+
+		manager.setClassifier(keywords("cherry", "durian"));
+		send(router, "b", "durian please");
+		send(router, "c", "apple");
+		VoteSnapshot snapshot = manager.snapshot();
+		assertNotNull(snapshot);
+		assertEquals(1, snapshot.getMulti(0));
+		assertEquals(1, snapshot.getMulti(1));
+		manager.release();
+	}
+
+	/**
+	 * 受付期間の外に投稿された票は数えない
+	 */
+	@Test
+	public void ignoresVotesAfterClose() throws InterruptedException {
+		VoteRouter router = new VoteRouter();
+		Manager manager = new Manager(router, keywords("yes", "no"));
+		manager.setAllowedLateness(60_000);
+		manager.open(60);
+		send(router, "a", "yes");
+		manager.close();
+		Thread.sleep(5);
+		send(router, "b", "yes");
+		assertEquals(1, manager.snapshot().getMulti(0));
+		manager.release();
+	}
+
+	/**
+	 * 受付終了を過ぎてから再開した投票は、すぐに締め切って締切を記録する
+	 */
+	@Test
+	public void recoveredVotePastItsEndIsClosed() throws IOException, InterruptedException {
+		Path file = this.folder.getRoot().toPath().resolve("vote.journal");
+		try (VoteJournal journal = new VoteJournal(file, 1000)) {
+			VoteSession session = new VoteSession(2, () -> VoterRegistry.exact(100), journal);
+			session.open(0, 1000, keywords("yes", "no"));
+		}
+		CountDownLatch closed = new CountDownLatch(1);
+		try (VoteJournal journal = new VoteJournal(file, 1000)) {
+			Manager manager = new Manager(new VoteRouter(), keywords("yes", "no"), journal) {
+				@Override
+				public void onVoteClosed(VoteSnapshot result) {
+					closed.countDown();
+				}
+			};
+			assertTrue(manager.recover());
+			assertTrue(closed.await(5, TimeUnit.SECONDS));
+			assertEquals(0, journal.size());
+			manager.release();
+		}
+	}
+}
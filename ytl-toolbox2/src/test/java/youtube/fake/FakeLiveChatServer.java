@@ -0,0 +1,425 @@
+package youtube.fake;
+
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.util.DateTime;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import youtube.Auth;
+import youtube.SyntheticChat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * YouTube Data API のうち、このアプリが呼ぶエンドポイントだけを真似るローカルHTTPサーバー。
+ * liveChatMessages.list は {@link SyntheticChat} で生成したチャットを返し、{@link Faults} で障害を注入できる。
+ * <p>
+ * 接続するには {@code HttpSettings} の rootUrl に {@link #getRootUrl()} を、authorize に false を指定する。
+ * 実行中の障害や流量は {@code /fake/control?latencyRate=0.1&latencyMs=3000&quotaErrorRate=0&serverErrorRate=0.05&rate=500&voters=5000}
+ * で変更できる。
+ */
+@SuppressWarnings("ALL")
+@Slf4j
+public class FakeLiveChatServer {
+
+	public static final String LIVE_CHAT_ID = "fake-live-chat";
+	public static final String VIDEO_ID = "fakeVideo01";
+	public static final String CHANNEL_ID = "UCfakeChannel00000000000";
+
+	/**
+	 * 保持するメッセージ数。これより古いページトークンは保持している最古の位置から返す
+	 */
+	private static final int CAPACITY = 1 << 17;
+	private static final long DEFAULT_MAX_RESULTS = 500;
+	private static final long MAX_RESULTS = 2000;
+	private static final long POLLING_INTERVAL_MS = 1000;
+
+	private final HttpServer server;
+	@Getter
+	private final SyntheticChat.Settings chatSettings;
+	@Getter
+	private final Faults faults = new Faults();
+	private final SyntheticChat chat;
+
+	// 生成済みメッセージのリング。列ごとに配列を分けて持つ
+	private final String[] ids = new String[CAPACITY];
+	private final long[] publishedAts = new long[CAPACITY];
+	private final String[] authorIds = new String[CAPACITY];
+	private final byte[] roles = new byte[CAPACITY];
+	private final String[] texts = new String[CAPACITY];
+	private long written = 0;
+
+	/**
+	 * @param port 0 なら空いているポート
+	 */
+	public FakeLiveChatServer(int port, SyntheticChat.Settings chatSettings) throws IOException {
+		this.chatSettings = chatSettings;
+		this.chat = new SyntheticChat(chatSettings, 1);
+		this.chat.generate(System.currentTimeMillis(), null);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		this.server.setExecutor(Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "FakeLiveChatServer");
+			t.setDaemon(true);
+			return t;
+		}));
+		this.server.createContext("/youtube/v3/liveChat/messages", this.api(this::liveChatMessages));
+		this.server.createContext("/youtube/v3/videos", this.api(this::videos));
+		this.server.createContext("/youtube/v3/search", this.api(this::search));
+		this.server.createContext("/youtube/v3/channels", this.api(this::channels));
+		this.server.createContext("/fake/control", this::control);
+	}
+
+	public void start() {
+		this.server.start();
+		log.info("fake YouTube API listening on {}", this.getRootUrl());
+	}
+
+	public void stop() {
+		this.server.stop(0);
+	}
+
+	public String getRootUrl() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+	}
+
+	/*==================================================================================================*
+	 * endpoints
+	 *==================================================================================================*/
+
+	@FunctionalInterface
+	private interface Endpoint {
+		void write(Map<String, String> query, JsonGenerator g) throws IOException;
+	}
+
+	private HttpHandler api(Endpoint endpoint) {
+		return exchange -> {
+			try {
+				if (this.injectFault(exchange)) {
+					return;
+				}
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				JsonGenerator g = Auth.JSON_FACTORY.createJsonGenerator(body, StandardCharsets.UTF_8);
+				endpoint.write(query(exchange), g);
+				g.flush();
+				this.send(exchange, 200, body.toByteArray());
+			} catch (RuntimeException e) {
+				log.error("fake endpoint failed", e);
+				this.send(exchange, 500, error(500, "backendError", e.toString()));
+			} finally {
+				exchange.close();
+			}
+		};
+	}
+
+	private void liveChatMessages(Map<String, String> query, JsonGenerator g) throws IOException {
+		long to;
+		String[] ids;
+		long[] publishedAts;
+		String[] authorIds;
+		byte[] roles;
+		String[] texts;
+		// リングは生成で上書きされるので、返す分をロックの中で写してから書き出す
+		synchronized (this) {
+			this.chat.generate(System.currentTimeMillis(), this::store);
+			long max = Math.min(MAX_RESULTS, query.containsKey("maxResults")
+					? Long.parseLong(query.get("maxResults")) : DEFAULT_MAX_RESULTS);
+			String token = query.get("pageToken");
+			long from = token == null ? this.written - Math.min(max, 200) : Long.parseLong(token, 36);
+			from = Math.max(from, Math.max(0, this.written - CAPACITY));
+			to = Math.min(this.written, from + max);
+			int n = (int) Math.max(0, to - from);
+			ids = new String[n];
+			publishedAts = new long[n];
+			authorIds = new String[n];
+			roles = new byte[n];
+			texts = new String[n];
+			for (int k = 0; k < n; k++) {
+				int i = (int) ((from + k) & (CAPACITY - 1));
+				ids[k] = this.ids[i];
+				publishedAts[k] = this.publishedAts[i];
+				authorIds[k] = this.authorIds[i];
+				roles[k] = this.roles[i];
+				texts[k] = this.texts[i];
+			}
+		}
+		boolean withAuthor = String.valueOf(query.get("part")).contains("authorDetails");
+		g.writeStartObject();
+		g.writeFieldName("kind");
+		g.writeString("youtube#liveChatMessageListResponse");
+		g.writeFieldName("pollingIntervalMillis");
+		g.writeNumber(POLLING_INTERVAL_MS);
+		g.writeFieldName("nextPageToken");
+		g.writeString(Long.toString(to, 36));
+		g.writeFieldName("items");
+		g.writeStartArray();
+		for (int k = 0; k < ids.length; k++) {
+			g.writeStartObject();
+			g.writeFieldName("id");
+			g.writeString(ids[k]);
+			g.writeFieldName("snippet");
+			g.writeStartObject();
+			g.writeFieldName("type");
+			g.writeString("textMessageEvent");
+			g.writeFieldName("publishedAt");
+			g.writeString(new DateTime(publishedAts[k]).toStringRfc3339());
+			g.writeFieldName("displayMessage");
+			g.writeString(texts[k]);
+			g.writeEndObject();
+			if (withAuthor) {
+				g.writeFieldName("authorDetails");
+				g.writeStartObject();
+				g.writeFieldName("channelId");
+				g.writeString(authorIds[k]);
+				g.writeFieldName("displayName");
+				g.writeString("viewer " + authorIds[k].substring(2, 8));
+				g.writeFieldName("channelUrl");
+				g.writeString("http://www.youtube.com/channel/" + authorIds[k]);
+				g.writeFieldName("isChatOwner");
+				g.writeBoolean((roles[k] & 1) != 0);
+				g.writeFieldName("isChatModerator");
+				g.writeBoolean((roles[k] & 2) != 0);
+				g.writeFieldName("isChatSponsor");
+				g.writeBoolean((roles[k] & 4) != 0);
+				g.writeEndObject();
+			}
+			g.writeEndObject();
+		}
+		g.writeEndArray();
+		g.writeEndObject();
+	}
+
+	private void store(String id, long publishedAt, String authorId, boolean owner, boolean moderator,
+					   boolean sponsor, String text) {
+		int i = (int) (this.written++ & (CAPACITY - 1));
+		this.ids[i] = id;
+		this.publishedAts[i] = publishedAt;
+		this.authorIds[i] = authorId;
+		this.roles[i] = (byte) ((owner ? 1 : 0) | (moderator ? 2 : 0) | (sponsor ? 4 : 0));
+		this.texts[i] = text;
+	}
+
+	private void videos(Map<String, String> query, JsonGenerator g) throws IOException {
+		g.writeStartObject();
+		g.writeFieldName("items");
+		g.writeStartArray();
+		g.writeStartObject();
+		g.writeFieldName("id");
+		g.writeString(VIDEO_ID);
+		g.writeFieldName("snippet");
+		g.writeStartObject();
+		g.writeFieldName("title");
+		g.writeString("Fake live stream");
+		g.writeFieldName("channelId");
+		g.writeString(CHANNEL_ID);
+		writeThumbnails(g);
+		g.writeEndObject();
+		g.writeFieldName("liveStreamingDetails");
+		g.writeStartObject();
+		g.writeFieldName("activeLiveChatId");
+		g.writeString(LIVE_CHAT_ID);
+		g.writeFieldName("actualStartTime");
+		g.writeString(new DateTime(System.currentTimeMillis()).toStringRfc3339());
+		g.writeEndObject();
+		g.writeEndObject();
+		g.writeEndArray();
+		g.writeEndObject();
+	}
+
+	private void search(Map<String, String> query, JsonGenerator g) throws IOException {
+		g.writeStartObject();
+		g.writeFieldName("items");
+		g.writeStartArray();
+		g.writeStartObject();
+		g.writeFieldName("id");
+		g.writeStartObject();
+		g.writeFieldName("kind");
+		g.writeString("youtube#video");
+		g.writeFieldName("videoId");
+		g.writeString(VIDEO_ID);
+		g.writeEndObject();
+		g.writeFieldName("snippet");
+		g.writeStartObject();
+		g.writeFieldName("channelId");
+		g.writeString(CHANNEL_ID);
+		g.writeEndObject();
+		g.writeEndObject();
+		g.writeEndArray();
+		g.writeEndObject();
+	}
+
+	private void channels(Map<String, String> query, JsonGenerator g) throws IOException {
+		g.writeStartObject();
+		g.writeFieldName("items");
+		g.writeStartArray();
+		g.writeStartObject();
+		g.writeFieldName("snippet");
+		g.writeStartObject();
+		g.writeFieldName("title");
+		g.writeString("Fake channel");
+		writeThumbnails(g);
+		g.writeEndObject();
+		g.writeFieldName("brandingSettings");
+		g.writeStartObject();
+		g.writeFieldName("image");
+		g.writeStartObject();
+		g.writeFieldName("bannerImageUrl");
+		g.writeString("http://127.0.0.1/banner.jpg");
+		g.writeEndObject();
+		g.writeEndObject();
+		g.writeEndObject();
+		g.writeEndArray();
+		g.writeEndObject();
+	}
+
+	private static void writeThumbnails(JsonGenerator g) throws IOException {
+		g.writeFieldName("thumbnails");
+		g.writeStartObject();
+		g.writeFieldName("medium");
+		g.writeStartObject();
+		g.writeFieldName("url");
+		g.writeString("http://127.0.0.1/thumbnail.jpg");
+		g.writeEndObject();
+		g.writeEndObject();
+	}
+
+	private void control(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> q = query(exchange);
+			if (q.containsKey("latencyRate")) {
+				this.faults.setLatencyRate(Double.parseDouble(q.get("latencyRate")));
+			}
+			if (q.containsKey("latencyMs")) {
+				this.faults.setLatencyMs(Long.parseLong(q.get("latencyMs")));
+			}
+			if (q.containsKey("quotaErrorRate")) {
+				this.faults.setQuotaErrorRate(Double.parseDouble(q.get("quotaErrorRate")));
+			}
+			if (q.containsKey("serverErrorRate")) {
+				this.faults.setServerErrorRate(Double.parseDouble(q.get("serverErrorRate")));
+			}
+			if (q.containsKey("rate")) {
+				this.chatSettings.setMessagesPerSecond(Double.parseDouble(q.get("rate")));
+			}
+			if (q.containsKey("voters")) {
+				this.chatSettings.setVoterCount(Integer.parseInt(q.get("voters")));
+			}
+			this.send(exchange, 200, (this.faults + " " + this.chatSettings).getBytes(StandardCharsets.UTF_8));
+		} catch (RuntimeException e) {
+			this.send(exchange, 400, e.toString().getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/*==================================================================================================*
+	 * helpers
+	 *==================================================================================================*/
+
+	/**
+	 * @return 障害を返してリクエストを終えた場合 true
+	 */
+	private boolean injectFault(HttpExchange exchange) throws IOException {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		if (r.nextDouble() < this.faults.getLatencyRate()) {
+			try {
+				Thread.sleep(this.faults.getLatencyMs());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (r.nextDouble() < this.faults.getQuotaErrorRate()) {
+			this.send(exchange, 403, error(403, "quotaExceeded", "The request cannot be completed because you have exceeded your quota."));
+			return true;
+		}
+		if (r.nextDouble() < this.faults.getServerErrorRate()) {
+			this.send(exchange, 503, error(503, "backendError", "Backend Error"));
+			return true;
+		}
+		return false;
+	}
+
+	private static byte[] error(int code, String reason, String message) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		JsonGenerator g = Auth.JSON_FACTORY.createJsonGenerator(body, StandardCharsets.UTF_8);
+		g.writeStartObject();
+		g.writeFieldName("error");
+		g.writeStartObject();
+		g.writeFieldName("code");
+		g.writeNumber(code);
+		g.writeFieldName("message");
+		g.writeString(message);
+		g.writeFieldName("errors");
+		g.writeStartArray();
+		g.writeStartObject();
+		g.writeFieldName("domain");
+		g.writeString(code == 403 ? "youtube.quota" : "global");
+		g.writeFieldName("reason");
+		g.writeString(reason);
+		g.writeFieldName("message");
+		g.writeString(message);
+		g.writeEndObject();
+		g.writeEndArray();
+		g.writeEndObject();
+		g.writeEndObject();
+		g.flush();
+		return body.toByteArray();
+	}
+
+	private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (accept != null && accept.contains("gzip")) {
+			ByteArrayOutputStream gz = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+				out.write(body);
+			}
+			body = gz.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static Map<String, String> query(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> map = new HashMap<>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw == null) {
+			return map;
+		}
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				map.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * 単体で起動する。引数: [ポート] [1秒あたりのメッセージ数]。{@code gradlew fakeServer -PfakeArgs="8089 500"} でも起動できる
+	 */
+	public static void main(String[] args) throws IOException {
+		SyntheticChat.Settings settings = new SyntheticChat.Settings();
+		if (args.length > 1) {
+			settings.setMessagesPerSecond(Double.parseDouble(args[1]));
+		}
+		FakeLiveChatServer server = new FakeLiveChatServer(args.length > 0 ? Integer.parseInt(args[0]) : 8089, settings);
+		server.start();
+		System.out.println(server.getRootUrl());
+	}
+}
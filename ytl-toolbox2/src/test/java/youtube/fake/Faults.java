@@ -0,0 +1,26 @@
+package youtube.fake;
+
+import lombok.Data;
+
+/**
+ * {@link FakeLiveChatServer} が注入する障害。実行中に書き換えられる
+ */
+@Data
+public class Faults {
+	/**
+	 * 遅延を入れるリクエストの割合(0～1)と、その遅延時間(ms)
+	 */
+	private volatile double latencyRate = 0;
+	private volatile long latencyMs = 0;
+	/**
+	 * 403 quotaExceeded を返すリクエストの割合(0～1)
+	 */
+	private volatile double quotaErrorRate = 0;
+	/**
+	 * 503 を返すリクエストの割合(0～1)
+	 */
+	private volatile double serverErrorRate = 0;
+
+	public Faults() {
+	}
+}